@@ -30,8 +30,13 @@ public final class FlowServices extends ServicesFactory {
   public static final String CONTACT_EDITOR = "CONTACT_EDITOR";
 
   // In a real app, the conditional class matching shown here doesn't scale very far. Decompose by
-  // keys. Even better, keep your ServicesFactory lean and simple by using the key to build/lookup
-  // a Dagger graph or Mortar scope!
+  // keys, giving each factory the key types it serves so that it is only called for those. Even
+  // better, keep your ServicesFactory lean and simple by using the key to build/lookup a Dagger
+  // graph or Mortar scope!
+
+  public FlowServices() {
+    super(ContactsUiKey.class, EditContactKey.class);
+  }
 
   @Override public void bindServices(@NonNull Services.Binder services) {
     Object key = services.getKey();
@@ -22,7 +22,8 @@ public interface Dispatcher {
   /**
    * Called when the history is about to change.  Note that Flow does not consider the
    * Traversal to be finished, and will not actually update the history, until the callback is
-   * triggered. Traversals cannot be canceled.
+   * triggered. Traversals can be preempted by {@link Flow#preempt()}, but only if the dispatcher
+   * registers a {@link Traversal#setOnCancelListener listener} to be told about it.
    * <p>
    * Also called immediately after {@link Flow#setDispatcher}, to update the new dispatcher
    * to Flow's current state. Such bootstrap Traversals have a null {@link Traversal#origin},
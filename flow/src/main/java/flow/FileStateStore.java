@@ -0,0 +1,123 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Writes each segment to its own file in a private directory, never changing it afterwards. A
+ * segment starts with the number of frames and their lengths, so a frame is read without reading
+ * the ones before it.
+ */
+final class FileStateStore implements StateStore {
+  private static final String PREFIX = "segment-";
+
+  private final File directory;
+
+  FileStateStore(File directory) {
+    this.directory = directory;
+  }
+
+  @NonNull @Override public String write(@NonNull List<byte[]> frames) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create " + directory);
+    }
+    long id = System.currentTimeMillis();
+    File file;
+    while ((file = new File(directory, PREFIX + id)).exists()) {
+      id++;
+    }
+    final File temp = new File(directory, file.getName() + ".tmp");
+    final DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+    try {
+      out.writeInt(frames.size());
+      for (byte[] frame : frames) {
+        out.writeInt(frame.length);
+      }
+      for (byte[] frame : frames) {
+        out.write(frame);
+      }
+    } finally {
+      out.close();
+    }
+    if (!temp.renameTo(file)) {
+      //noinspection ResultOfMethodCallIgnored
+      temp.delete();
+      throw new IOException("Cannot rename " + temp + " to " + file);
+    }
+    return file.getName();
+  }
+
+  @NonNull @Override public byte[] read(@NonNull String token, int index) throws IOException {
+    final File file = segment(token);
+    if (file == null) throw new FileNotFoundException("Not a segment: " + token);
+    final DataInputStream in = new DataInputStream(new FileInputStream(file));
+    try {
+      // Checked against the size of the file before trusting them, in case it is corrupt.
+      final long size = file.length();
+      final int count = in.readInt();
+      long end = 4 + 4L * count;
+      if (count < 0 || end > size) throw new IOException("Corrupt segment " + token);
+      if (index < 0 || index >= count) {
+        throw new IOException("No frame " + index + " in " + token + " of " + count);
+      }
+      long offset = 0;
+      int length = 0;
+      for (int i = 0; i < count; i++) {
+        final int frameLength = in.readInt();
+        if (frameLength < 0) throw new IOException("Corrupt segment " + token);
+        if (i < index) offset += frameLength;
+        if (i == index) length = frameLength;
+        end += frameLength;
+      }
+      if (end > size) throw new IOException("Truncated segment " + token);
+      while (offset > 0) {
+        final long skipped = in.skip(offset);
+        if (skipped <= 0) throw new IOException("Truncated segment " + token);
+        offset -= skipped;
+      }
+      final byte[] frame = new byte[length];
+      in.readFully(frame);
+      return frame;
+    } finally {
+      in.close();
+    }
+  }
+
+  @Override public void delete(@NonNull String token) {
+    final File file = segment(token);
+    //noinspection ResultOfMethodCallIgnored
+    if (file != null) file.delete();
+  }
+
+  /** Returns the file of a segment, or null if the token cannot name one in the directory. */
+  @Nullable private File segment(String token) {
+    if (!token.startsWith(PREFIX) || token.indexOf(File.separatorChar) >= 0) return null;
+    return new File(directory, token);
+  }
+}
@@ -27,6 +27,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 import static flow.Preconditions.checkArgument;
 import static flow.Preconditions.checkNotNull;
@@ -89,6 +90,19 @@ public final class Flow {
     return getService(serviceName, view.getContext());
   }
 
+  /** @return null if context does not contain the service. */
+  @Nullable
+  public static <T> T getService(@NonNull ServiceKey<T> serviceKey, @NonNull Context context) {
+    final FlowContextWrapper wrapper = FlowContextWrapper.get(context);
+    if (wrapper == null) return null;
+    return wrapper.services.getService(serviceKey);
+  }
+
+  /** @return null if context does not contain the service. */
+  @Nullable public static <T> T getService(@NonNull ServiceKey<T> serviceKey, @NonNull View view) {
+    return getService(serviceKey, view.getContext());
+  }
+
   @NonNull
   public static Installer configure(@NonNull Context baseContext, @NonNull Activity activity) {
     return new Installer(baseContext, activity);
@@ -119,9 +133,31 @@ public final class Flow {
   private History history;
   private HistoryFilter historyFilter = new NotPersistentHistoryFilter();
   private Dispatcher dispatcher;
+  /** The traversal that is running, or the next one to run. Head of the traversal queue. */
   private PendingTraversal pendingTraversal;
+  /** Tail of the traversal queue, linked from {@link #pendingTraversal} by {@code next}. */
+  private PendingTraversal lastTraversal;
+  /** The number of queued traversals that have not yet been executed. */
+  private int queueDepth;
+  private int queueCapacity = Integer.MAX_VALUE;
+  private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_NEWEST;
   private HistoryCallback historyCallback;
-  private List<Object> tearDownKeys = new ArrayList<>();
+  /** Keys left by completed traversals, each paired with the key it was left for. */
+  private List<LeftKey> tearDownKeys = new ArrayList<>();
+  private boolean coalescing;
+  @Nullable private Executor prepareExecutor;
+  private Executor mainExecutor;
+  @Nullable private FlowMonitor monitor;
+  @Nullable private Executor tearDownExecutor;
+  private boolean tearDownScheduled;
+  private final Runnable deferredTearDown = new Runnable() {
+    @Override public void run() {
+      tearDownScheduled = false;
+      // A traversal started since this was scheduled. Its completion will schedule another run.
+      if (pendingTraversal != null) return;
+      tearDownExcept(history.asList());
+    }
+  };
   private final KeyManager keyManager;
 
   Flow(KeyManager keyManager, History history) {
@@ -154,6 +190,76 @@ public final class Flow {
     this.historyFilter = historyFilter;
   }
 
+  /**
+   * Enables or disables coalescing of queued traversals. When enabled, all traversals that are
+   * waiting for the current one to complete are folded into a single traversal to their net
+   * history, so a burst of navigation results in one dispatch. Keys that would only have been
+   * visible in between are never set up. Off by default.
+   */
+  public void setCoalescing(boolean coalescing) {
+    this.coalescing = coalescing;
+  }
+
+  /**
+   * Bounds the number of traversals that may wait for the running one to complete. When a
+   * traversal is requested while the queue is full, the given policy decides what to give up.
+   * Unbounded by default.
+   */
+  public void setQueueCapacity(int capacity, @NonNull OverflowPolicy policy) {
+    checkArgument(capacity > 0, "capacity must be positive");
+    this.queueCapacity = capacity;
+    this.overflowPolicy = checkNotNull(policy, "policy");
+  }
+
+  /**
+   * Sets the executor on which {@link PreparingDispatcher preparing dispatchers} are given a chance
+   * to prepare each traversal, and on which the services of its destination are bound. Pass null
+   * to dispatch everything on the main thread, which is the default.
+   */
+  public void setPrepareExecutor(@Nullable Executor executor) {
+    setPrepareExecutor(executor, executor == null ? null : new MainThreadExecutor());
+  }
+
+  void setPrepareExecutor(@Nullable Executor executor, @Nullable Executor mainExecutor) {
+    this.prepareExecutor = executor;
+    this.mainExecutor = mainExecutor;
+  }
+
+  /**
+   * Defers tearing down the keys that traversals leave behind, and forgetting their state, until
+   * the main thread is idle. Keys are then torn down in a batch, in the order they were left. A key
+   * that is navigated straight back to before that happens keeps its services, which are not bound
+   * again.
+   * <p>
+   * Off by default, in which case keys are torn down as soon as the last queued traversal
+   * completes. Must be called on the main thread.
+   */
+  public void setDeferredTearDown(boolean deferred) {
+    setTearDownExecutor(deferred ? new IdleExecutor() : null);
+  }
+
+  void setTearDownExecutor(@Nullable Executor executor) {
+    if (executor == null && tearDownExecutor != null && pendingTraversal == null) {
+      tearDownExcept(history.asList());
+    }
+    this.tearDownExecutor = executor;
+    tearDownScheduled = false;
+  }
+
+  /** Tears down any keys whose deferred teardown has not run yet. */
+  void tearDownDeferred() {
+    if (tearDownExecutor != null) tearDownExcept(history.asList());
+  }
+
+  void setMonitor(@Nullable FlowMonitor monitor) {
+    this.monitor = monitor;
+  }
+
+  /** Returns the number of traversals waiting to be executed, not counting a running one. */
+  public int getQueueDepth() {
+    return queueDepth;
+  }
+
   void setDispatcher(@NonNull Dispatcher dispatcher, final boolean restore) {
     this.dispatcher = checkNotNull(dispatcher, "dispatcher");
 
@@ -172,6 +278,7 @@ public final class Flow {
 
     if (pendingTraversal.state == TraversalState.ENQUEUED) {
       // A traversal was enqueued while we had no dispatcher, run it now.
+      if (coalescing) pendingTraversal = fold(pendingTraversal, history);
       pendingTraversal.execute();
       return;
     }
@@ -198,12 +305,15 @@ public final class Flow {
   }
 
   /**
-   * Replaces the history with the one given and dispatches in the given direction.
+   * Replaces the history with the one given and dispatches in the given direction. Keys of the
+   * current history that are kept in the new one, as described by {@link Traversal#getDiff()},
+   * retain their original instances.
    */
   public void setHistory(@NonNull final History history, @NonNull final Direction direction) {
-    move(new PendingTraversal() {
-      @Override void doExecute() {
-        dispatch(preserveEquivalentPrefix(getHistory(), history), direction);
+    move(new HistoryTraversal() {
+      @Override void resolve(History origin) {
+        final HistoryDiff diff = HistoryDiff.between(origin, history);
+        resolveTo(diff.preservingOrigin(), direction, diff);
       }
     });
   }
@@ -212,10 +322,9 @@ public final class Flow {
    * Replaces the history with the given key and dispatches in the given direction.
    */
   public void replaceHistory(@NonNull final Object key, @NonNull final Direction direction) {
-    move(new PendingTraversal() {
-      @Override
-      void doExecute() {
-        dispatch(getHistory().buildUpon().clear().push(key).build(), direction);
+    move(new HistoryTraversal() {
+      @Override void resolve(History origin) {
+        resolveTo(origin.buildUpon().clear().push(key).build(), direction, null);
       }
     });
   }
@@ -224,10 +333,9 @@ public final class Flow {
    * Replaces the top key of the history with the given key and dispatches in the given direction.
    */
   public void replaceTop(@NonNull final Object key, @NonNull final Direction direction) {
-    move(new PendingTraversal() {
-      @Override
-      void doExecute() {
-        dispatch(getHistory().buildUpon().pop(1).push(key).build(), direction);
+    move(new HistoryTraversal() {
+      @Override void resolve(History origin) {
+        resolveTo(origin.buildUpon().pop(1).push(key).build(), direction, null);
       }
     });
   }
@@ -245,43 +353,78 @@ public final class Flow {
    * If newTopKey is not already on the history, it will be pushed and the dispatch direction will
    * be {@link Direction#FORWARD}.
    *
-   * Objects' equality is always checked using {@link Object#equals(Object)}.
+   * Objects' equality is always checked using {@link Object#hashCode()} and
+   * {@link Object#equals(Object)}.
    */
   public void set(@NonNull final Object newTopKey) {
-    move(new PendingTraversal() {
-      @Override void doExecute() {
-        if (newTopKey.equals(history.top())) {
-          dispatch(history, Direction.REPLACE);
+    move(new HistoryTraversal() {
+      @Override void resolve(History origin) {
+        if (newTopKey.equals(origin.top())) {
+          resolveTo(origin, Direction.REPLACE, null);
           return;
         }
 
-        History.Builder builder = history.buildUpon();
-        int count = 0;
-        // Search backward to see if we already have newTop on the stack
-        Object preservedInstance = null;
-        for (Object entry : history.framesFromBottom()) {
-          // If we find newTop on the stack, pop back to it.
-          if (entry.equals(newTopKey)) {
-            for (int i = 0; i < history.size() - count; i++) {
-              preservedInstance = builder.pop();
-            }
-            break;
-          } else {
-            count++;
-          }
-        }
+        History.Builder builder = origin.buildUpon();
+        // See if we already have newTop on the stack, looking for its oldest entry.
+        final int index = origin.lastIndexOf(newTopKey);
 
-        History newHistory;
-        if (preservedInstance != null) {
-          // newTop was on the history. Put the preserved instance back on and dispatch.
-          builder.push(preservedInstance);
-          newHistory = builder.build();
-          dispatch(newHistory, Direction.BACKWARD);
+        if (index >= 0) {
+          // newTop was on the history. Pop back to the preserved instance.
+          builder.pop(index);
+          resolveTo(builder.build(), Direction.BACKWARD, null);
         } else {
-          // newTop was not on the history. Push it on and dispatch.
+          // newTop was not on the history. Push it on.
           builder.push(newTopKey);
-          newHistory = builder.build();
-          dispatch(newHistory, Direction.FORWARD);
+          resolveTo(builder.build(), Direction.FORWARD, null);
+        }
+      }
+    });
+  }
+
+  /**
+   * Cancels the traversal that is currently being dispatched, so that the next one can start
+   * without waiting for it to finish, for instance when the user hits back in the middle of an
+   * animation. Preempting is up to the dispatcher: it is told through the {@link
+   * Traversal#setOnCancelListener listener} it registered, and must jump to the end state of the
+   * cancelled traversal and call {@link TraversalCallback#onTraversalCompleted()} right away.
+   * Until then the queue waits as usual. Later completions of the cancelled traversal, for
+   * instance from the end of an animation that was cut short, are ignored. Traversals that are
+   * still being {@link PreparingDispatcher prepared} are cancelled and folded into the next one.
+   *
+   * <p>Typically called right before the navigation that should take over, e.g. {@link
+   * #goBack()}.
+   */
+  public void preempt() {
+    final PendingTraversal running = pendingTraversal;
+    if (running == null || running.state != TraversalState.DISPATCHED) return;
+    if (running.preparing != null) {
+      running.preparing.cancel();
+    } else if (running.dispatched != null) {
+      running.dispatched.cancel();
+    }
+  }
+
+  /**
+   * Applies the given edits in order to a builder of the history, as it is when the traversal
+   * executes, and dispatches the result in the given direction. However many edits there are,
+   * this results in a single {@link Traversal}. If the edits leave the history empty,
+   * {@link HistoryCallback#onHistoryCleared()} is triggered as it is by {@link #goBack()}.
+   */
+  public void batch(@NonNull final Direction direction, @NonNull final HistoryEdit... edits) {
+    checkNotNull(direction, "direction");
+    for (HistoryEdit edit : edits) {
+      checkNotNull(edit, "edit");
+    }
+    move(new HistoryTraversal() {
+      @Override void resolve(History origin) {
+        final History.Builder builder = origin.buildUpon();
+        for (HistoryEdit edit : edits) {
+          edit.apply(builder);
+        }
+        if (builder.isEmpty()) {
+          resolveToClear();
+        } else {
+          resolveTo(builder.build(), direction, null);
         }
       }
     });
@@ -301,60 +444,264 @@ public final class Flow {
       return;
     }
 
-    move(new PendingTraversal() {
-      @Override void doExecute() {
-        if (history.size() == 0) {
+    move(new HistoryTraversal() {
+      @Override void resolve(History origin) {
+        if (origin.size() == 0) {
           throw new IllegalStateException("goBack() on empty history");
         }
-        if (history.size() == 1) {
+        if (origin.size() == 1) {
           // https://github.com/square/flow/issues/264
-          pendingTraversal.clearHistory();
+          resolveToClear();
           return;
         }
 
-        History.Builder builder = history.buildUpon();
+        History.Builder builder = origin.buildUpon();
         builder.pop();
-        final History newHistory = builder.build();
-        dispatch(newHistory, Direction.BACKWARD);
+        resolveTo(builder.build(), Direction.BACKWARD, null);
       }
     });
   }
 
   private void move(PendingTraversal pendingTraversal) {
+    if (this.pendingTraversal != null && this.pendingTraversal.preparing != null
+        && pendingTraversal instanceof HistoryTraversal) {
+      // The traversal being prepared is superseded. It will be folded into this one.
+      this.pendingTraversal.preparing.cancel();
+    }
+    if (this.pendingTraversal != null && queueDepth >= queueCapacity
+        && !makeRoom(pendingTraversal)) {
+      return;
+    }
     if (this.pendingTraversal == null) {
       this.pendingTraversal = pendingTraversal;
+      lastTraversal = pendingTraversal;
+      queueDepth++;
+      if (monitor != null) monitor.onTraversalEnqueued(queueDepth, System.nanoTime());
       // If there is no dispatcher wait until one shows up before executing.
       if (dispatcher != null) pendingTraversal.execute();
-    } else {
-      this.pendingTraversal.enqueue(pendingTraversal);
+      return;
     }
+    lastTraversal.next = pendingTraversal;
+    lastTraversal = pendingTraversal;
+    queueDepth++;
+    if (monitor != null) monitor.onTraversalEnqueued(queueDepth, System.nanoTime());
   }
 
-  private static History preserveEquivalentPrefix(History current, History proposed) {
-    Iterator<Object> oldIt = current.framesFromBottom().iterator();
-    Iterator<Object> newIt = proposed.framesFromBottom().iterator();
+  /**
+   * Sets up a key, leaving alone what it shares with the key it is reached from. The origin stays
+   * set up until it is torn down relative to this key, see {@link LeftKey}.
+   */
+  private void setUp(Object key, @Nullable Object from) {
+    final FlowMonitor monitor = this.monitor;
+    if (monitor == null) {
+      keyManager.setUp(key, from);
+      return;
+    }
+    final long start = System.nanoTime();
+    keyManager.setUp(key, from);
+    monitor.onKeySetUp(key, start, System.nanoTime());
+  }
 
-    History.Builder preserving = current.buildUpon().clear();
+  private void tearDown(Object key, @Nullable Object to) {
+    final FlowMonitor monitor = this.monitor;
+    if (monitor == null) {
+      keyManager.tearDown(key, to);
+      return;
+    }
+    final long start = System.nanoTime();
+    keyManager.tearDown(key, to);
+    monitor.onKeyTornDown(key, start, System.nanoTime());
+  }
 
-    while (newIt.hasNext()) {
-      Object newEntry = newIt.next();
-      if (!oldIt.hasNext()) {
-        preserving.push(newEntry);
-        break;
+  /**
+   * Takes back a key whose deferred teardown is still waiting, if it is about to be set up again
+   * from the very key it was left for. Setting it up and tearing it down would cancel out. Returns
+   * false if it must be set up.
+   */
+  private boolean resurrect(Object key, Object from) {
+    if (tearDownExecutor == null) return false;
+    final Iterator<LeftKey> it = tearDownKeys.iterator();
+    while (it.hasNext()) {
+      final LeftKey left = it.next();
+      if (left.key.equals(key) && left.leftFor.equals(from)) {
+        it.remove();
+        return true;
       }
-      Object oldEntry = oldIt.next();
-      if (oldEntry.equals(newEntry)) {
-        preserving.push(oldEntry);
-      } else {
-        preserving.push(newEntry);
-        break;
+    }
+    return false;
+  }
+
+  /**
+   * Tears down the keys left behind by completed traversals, and forgets their state. Ones still in
+   * the history below the top have their view state compacted instead.
+   */
+  private void tearDownExcept(List<Object> keep) {
+    final Object top = history.top();
+    final Iterator<LeftKey> it = tearDownKeys.iterator();
+    while (it.hasNext()) {
+      final LeftKey left = it.next();
+      if (!left.key.equals(top) && keep.contains(left.key)) keyManager.compactState(left.key);
+      tearDown(left.key, left.leftFor);
+      it.remove();
+    }
+    keyManager.trimToMemoryBudget(history.top());
+    final FlowMonitor monitor = this.monitor;
+    if (monitor == null) {
+      keyManager.clearStatesExcept(keep);
+      return;
+    }
+    final long start = System.nanoTime();
+    keyManager.clearStatesExcept(keep);
+    monitor.onStatesCleared(keep.size(), start, System.nanoTime());
+  }
+
+  /**
+   * Applies the {@link OverflowPolicy} to a full queue.
+   *
+   * @return false if the incoming traversal should be dropped
+   */
+  private boolean makeRoom(PendingTraversal incoming) {
+    if (!(incoming instanceof HistoryTraversal)) {
+      // Bootstrap traversals are never dropped.
+      return true;
+    }
+    switch (overflowPolicy) {
+      case DROP_NEWEST:
+        return false;
+
+      case DROP_OLDEST:
+        PendingTraversal previous = null;
+        for (PendingTraversal traversal = pendingTraversal; traversal != null;
+            traversal = traversal.next) {
+          if (traversal.state == TraversalState.ENQUEUED
+              && traversal instanceof HistoryTraversal) {
+            unlink(previous, traversal);
+            return true;
+          }
+          previous = traversal;
+        }
+        return true;
+
+      case COALESCE:
+        if (pendingTraversal.state == TraversalState.ENQUEUED) {
+          pendingTraversal = fold(pendingTraversal, history);
+        } else {
+          // Queued traversals will start from wherever the running one is going.
+          History origin =
+              pendingTraversal.nextHistory != null ? pendingTraversal.nextHistory : history;
+          PendingTraversal first = pendingTraversal.next;
+          pendingTraversal.next = fold(first, origin);
+        }
+        // If nothing could be folded, fall back to dropping the newcomer.
+        return queueDepth < queueCapacity;
+
+      default:
+        throw new AssertionError("Unknown policy " + overflowPolicy);
+    }
+  }
+
+  private void unlink(@Nullable PendingTraversal previous, PendingTraversal traversal) {
+    if (previous == null) {
+      pendingTraversal = traversal.next;
+    } else {
+      previous.next = traversal.next;
+    }
+    if (lastTraversal == traversal) lastTraversal = previous;
+    traversal.state = TraversalState.FINISHED;
+    queueDepth--;
+  }
+
+  /**
+   * Folds the given enqueued traversal and those queued behind it into one, resolving them in
+   * turn starting from origin. Folding stops at any traversal that cannot be resolved ahead of
+   * time, which is left queued behind the folded one.
+   *
+   * @return the traversal that replaces first in the queue
+   */
+  private PendingTraversal fold(PendingTraversal first, final History origin) {
+    if (first.next == null || !(first instanceof HistoryTraversal)) return first;
+
+    final List<HistoryTraversal> parts = new ArrayList<>();
+    History destination = origin;
+    PendingTraversal rest = first;
+    while (rest instanceof HistoryTraversal) {
+      HistoryTraversal traversal = (HistoryTraversal) rest;
+      traversal.resolve(destination);
+      if (traversal.nextHistory == null) break;
+
+      destination = traversal.nextHistory;
+      parts.add(traversal);
+      rest = traversal.next;
+    }
+    final int folded = parts.size();
+    if (folded < 2) return first;
+
+    for (PendingTraversal traversal = first; traversal != rest; traversal = traversal.next) {
+      traversal.state = TraversalState.FINISHED;
+    }
+    final History netHistory = destination;
+    final Direction netDirection = netDirection(origin, netHistory, parts);
+    PendingTraversal coalesced = new HistoryTraversal() {
+      @Override void resolve(History from) {
+        if (from == origin) {
+          resolveTo(netHistory, netDirection, null);
+          return;
+        }
+        // The traversal ahead did not end where it was going, for instance because its
+        // preparation was cancelled or failed. Resolve the folded ones again from where it did.
+        History destination = from;
+        for (HistoryTraversal part : parts) {
+          part.resolve(destination);
+          if (part.nextHistory == null) {
+            // Clearing the history drops everything after it anyway.
+            resolveToClear();
+            return;
+          }
+          destination = part.nextHistory;
+        }
+        resolveTo(destination, netDirection(from, destination, parts), null);
       }
+    };
+    coalesced.next = rest;
+    if (rest == null) lastTraversal = coalesced;
+    queueDepth -= folded - 1;
+    return coalesced;
+  }
+
+  /**
+   * The direction of a traversal folded from the given resolved ones: theirs if they all went the
+   * same way, or one picked from the net change otherwise.
+   */
+  private static Direction netDirection(History origin, History destination,
+      List<HistoryTraversal> parts) {
+    final Direction direction = parts.get(0).nextDirection;
+    for (HistoryTraversal part : parts) {
+      if (part.nextDirection != direction) return netDirection(origin, destination);
     }
+    return direction;
+  }
 
-    while (newIt.hasNext()) {
-      preserving.push(newIt.next());
+  /** Picks a direction for a traversal folded from others that went different ways. */
+  private static Direction netDirection(History origin, History destination) {
+    final Object top = destination.top();
+    if (top.equals(origin.top())) return Direction.REPLACE;
+    if (origin.contains(top)) return Direction.BACKWARD;
+    if (destination.contains(origin.top())) return Direction.FORWARD;
+    return Direction.REPLACE;
+  }
+
+  /**
+   * A key left by a traversal. Its destination was only set up where it differs from this key, so
+   * this key is torn down only where it differs from the destination.
+   */
+  private static final class LeftKey {
+    final Object key;
+    final Object leftFor;
+
+    LeftKey(Object key, Object leftFor) {
+      this.key = key;
+      this.leftFor = leftFor;
     }
-    return preserving.build();
   }
 
   private enum TraversalState {
@@ -378,16 +725,16 @@ public final class Flow {
     TraversalState state = TraversalState.ENQUEUED;
     PendingTraversal next;
     History nextHistory;
-
-    void enqueue(PendingTraversal pendingTraversal) {
-      if (this.next == null) {
-        this.next = pendingTraversal;
-      } else {
-        this.next.enqueue(pendingTraversal);
-      }
-    }
+    /** Set while a {@link PreparingDispatcher} is preparing this traversal. */
+    @Nullable Traversal preparing;
+    /** Set once this traversal has been handed to the dispatcher. */
+    @Nullable Traversal dispatched;
 
     @Override public void onTraversalCompleted() {
+      if (state == TraversalState.FINISHED && dispatched != null && dispatched.isCancelled()) {
+        // Late completion of a traversal that was already cut short.
+        return;
+      }
       if (state != TraversalState.DISPATCHED) {
         throw new IllegalStateException(
             state == TraversalState.FINISHED ? "onComplete already called for this transition"
@@ -395,20 +742,25 @@ public final class Flow {
       }
       // Is not set by noop and bootstrap transitions.
       if (nextHistory != null) {
-        tearDownKeys.add(history.top());
+        tearDownKeys.add(new LeftKey(history.top(), nextHistory.top()));
         history = nextHistory;
       }
       state = TraversalState.FINISHED;
       pendingTraversal = next;
+      if (monitor != null) {
+        monitor.onTraversalCompleted(history.top(), queueDepth, System.nanoTime());
+      }
 
       if (pendingTraversal == null) {
-        final Iterator<Object> it = tearDownKeys.iterator();
-        while (it.hasNext()) {
-          keyManager.tearDown(it.next());
-          it.remove();
+        lastTraversal = null;
+        if (tearDownExecutor == null) {
+          tearDownExcept(history.asList());
+        } else if (!tearDownScheduled) {
+          tearDownScheduled = true;
+          tearDownExecutor.execute(deferredTearDown);
         }
-        keyManager.clearStatesExcept(history.asList());
       } else if (dispatcher != null) {
+        if (coalescing) pendingTraversal = fold(pendingTraversal, history);
         pendingTraversal.execute();
       }
     }
@@ -418,18 +770,108 @@ public final class Flow {
         throw new AssertionError("Bad doExecute method allowed dispatcher to be cleared");
       }
       if (!restore) {
-        keyManager.setUp(history.top());
+        setUp(history.top(), null);
       }
-      dispatcher.dispatch(new Traversal(null, history, Direction.REPLACE, keyManager), this);
+      dispatched = new Traversal(null, history, Direction.REPLACE, null, keyManager);
+      if (monitor != null) monitor.onDispatchStarted(null, history.top(), System.nanoTime());
+      dispatcher.dispatch(dispatched, this);
     }
 
-    void dispatch(History nextHistory, Direction direction) {
+    void dispatch(History nextHistory, Direction direction, @Nullable HistoryDiff diff) {
       this.nextHistory = checkNotNull(nextHistory, "nextHistory");
       if (dispatcher == null) {
         throw new AssertionError("Bad doExecute method allowed dispatcher to be cleared");
       }
-      keyManager.setUp(nextHistory.top());
-      dispatcher.dispatch(new Traversal(getHistory(), nextHistory, direction, keyManager), this);
+      final Traversal traversal =
+          new Traversal(getHistory(), nextHistory, direction, diff, keyManager);
+      if (prepareExecutor != null && dispatcher instanceof PreparingDispatcher) {
+        prepare((PreparingDispatcher) dispatcher, traversal);
+        return;
+      }
+      final Object origin = history.top();
+      if (!resurrect(nextHistory.top(), origin)) setUp(nextHistory.top(), origin);
+      dispatched = traversal;
+      if (monitor != null) {
+        monitor.onDispatchStarted(history.top(), nextHistory.top(), System.nanoTime());
+      }
+      dispatcher.dispatch(traversal, this);
+    }
+
+    private void prepare(final PreparingDispatcher preparer, final Traversal traversal) {
+      preparing = traversal;
+      //noinspection ConstantConditions
+      prepareExecutor.execute(new Runnable() {
+        @Override public void run() {
+          boolean setUp = false;
+          Throwable failure = null;
+          try {
+            if (!traversal.isCancelled()) {
+              //noinspection ConstantConditions
+              Flow.this.setUp(traversal.destination.top(), traversal.origin.top());
+              setUp = true;
+              if (!traversal.isCancelled()) preparer.prepare(traversal);
+            }
+          } catch (Throwable e) {
+            // Errors too, or the traversal would never leave the queue.
+            failure = e;
+          }
+          final boolean wasSetUp = setUp;
+          final Throwable prepareFailure = failure;
+          mainExecutor.execute(new Runnable() {
+            @Override public void run() {
+              if (prepareFailure != null) {
+                abandon(traversal, wasSetUp);
+                if (prepareFailure instanceof Error) throw (Error) prepareFailure;
+                throw (RuntimeException) prepareFailure;
+              }
+              commit(preparer, traversal, wasSetUp);
+            }
+          });
+        }
+      });
+    }
+
+    private void commit(PreparingDispatcher preparer, Traversal traversal, boolean setUp) {
+      preparing = null;
+      if (!traversal.isCancelled() && dispatcher == preparer) {
+        dispatched = traversal;
+        if (monitor != null) {
+          monitor.onDispatchStarted(history.top(), traversal.destination.top(), System.nanoTime());
+        }
+        preparer.dispatch(traversal, this);
+        return;
+      }
+
+      // Superseded, or the dispatcher went away. Undo and start over, folding in anything queued.
+      //noinspection ConstantConditions
+      if (setUp) tearDown(traversal.destination.top(), traversal.origin.top());
+      nextHistory = null;
+      state = TraversalState.ENQUEUED;
+      queueDepth++;
+      if (monitor != null) monitor.onTraversalEnqueued(queueDepth, System.nanoTime());
+      if (dispatcher != null) {
+        pendingTraversal = fold(this, history);
+        pendingTraversal.execute();
+      }
+    }
+
+    /**
+     * Drops a traversal whose preparation failed, undoing its set up, so that the queue moves on
+     * instead of waiting for a dispatch that will never come.
+     */
+    private void abandon(Traversal traversal, boolean setUp) {
+      preparing = null;
+      //noinspection ConstantConditions
+      if (setUp) tearDown(traversal.destination.top(), traversal.origin.top());
+      nextHistory = null;
+      state = TraversalState.FINISHED;
+      pendingTraversal = next;
+      if (pendingTraversal == null) {
+        lastTraversal = null;
+      } else if (dispatcher != null) {
+        if (coalescing) pendingTraversal = fold(pendingTraversal, history);
+        pendingTraversal.execute();
+      }
     }
 
     final void execute() {
@@ -437,19 +879,18 @@ public final class Flow {
       if (dispatcher == null) throw new AssertionError("Caller must ensure that dispatcher is set");
 
       state = TraversalState.DISPATCHED;
+      queueDepth--;
+      if (monitor != null) monitor.onTraversalExecuted(queueDepth, System.nanoTime());
       doExecute();
     }
 
     final void clearHistory() {
       // Note: history top will be cleared in onDestroy() call
-      final Iterator<Object> it = tearDownKeys.iterator();
-      while (it.hasNext()) {
-        keyManager.tearDown(it.next());
-        it.remove();
-      }
-      keyManager.clearStatesExcept(Collections.emptyList());
+      tearDownExcept(Collections.emptyList());
       next = null;
       pendingTraversal = null;
+      lastTraversal = null;
+      queueDepth = 0;
       state = TraversalState.FINISHED;
       historyCallback.onHistoryCleared();
     }
@@ -460,4 +901,39 @@ public final class Flow {
      */
     abstract void doExecute();
   }
+
+  /**
+   * A traversal whose destination is computed from the history it starts from. This allows
+   * traversals to be resolved ahead of time against a history that has not been dispatched yet.
+   */
+  private abstract class HistoryTraversal extends PendingTraversal {
+    Direction nextDirection;
+    @Nullable HistoryDiff nextDiff;
+
+    /**
+     * Must be synchronous and end with a call to {@link #resolveTo} or {@link #resolveToClear}.
+     * Must not have side effects, it may be called more than once.
+     */
+    abstract void resolve(History origin);
+
+    final void resolveTo(History nextHistory, Direction direction, @Nullable HistoryDiff diff) {
+      this.nextHistory = checkNotNull(nextHistory, "nextHistory");
+      this.nextDirection = direction;
+      this.nextDiff = diff;
+    }
+
+    /** Indicates that this traversal empties the history, which calls for {@link #clearHistory}. */
+    final void resolveToClear() {
+      this.nextHistory = null;
+    }
+
+    @Override final void doExecute() {
+      resolve(history);
+      if (nextHistory == null) {
+        clearHistory();
+      } else {
+        dispatch(nextHistory, nextDirection, nextDiff);
+      }
+    }
+  }
 }
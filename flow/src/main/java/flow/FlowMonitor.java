@@ -0,0 +1,70 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Observes the phases of each traversal, for instance to measure where navigation time goes.
+ * Installed with {@link Installer#monitor}. All times are {@link System#nanoTime()} readings.
+ * <p>
+ * Calls are made synchronously, in the middle of navigation, so implementations should be cheap.
+ * Everything is called on the main thread, except {@link #onKeySetUp} when the dispatcher is a
+ * {@link PreparingDispatcher}.
+ */
+public abstract class FlowMonitor {
+  /**
+   * A traversal was added to the queue. The depth includes it, but not a traversal that is
+   * already running.
+   */
+  public void onTraversalEnqueued(int queueDepth, long timeNanos) {
+  }
+
+  /** A traversal was taken off the queue and started running. */
+  public void onTraversalExecuted(int queueDepth, long timeNanos) {
+  }
+
+  /** The services of the given key were set up, from {@link ServicesFactory#bindServices}. */
+  public void onKeySetUp(@NonNull Object key, long startNanos, long endNanos) {
+  }
+
+  /**
+   * A {@link Traversal} is about to be handed to {@link Dispatcher#dispatch}. The origin is null
+   * when the dispatcher is bootstrapped with the current history.
+   */
+  public void onDispatchStarted(@Nullable Object originKey, @NonNull Object destinationKey,
+      long timeNanos) {
+  }
+
+  /** The dispatcher reported a traversal complete, leaving the given key on top. */
+  public void onTraversalCompleted(@NonNull Object topKey, int queueDepth, long timeNanos) {
+  }
+
+  /**
+   * A key that is no longer needed was torn down, from {@link ServicesFactory#tearDownServices}.
+   */
+  public void onKeyTornDown(@NonNull Object key, long startNanos, long endNanos) {
+  }
+
+  /**
+   * The saved {@link State} of keys no longer in the history was cleared, to be retained for a
+   * while or discarded. Those of the given number of keys still in the history were kept.
+   */
+  public void onStatesCleared(int kept, long startNanos, long endNanos) {
+  }
+}
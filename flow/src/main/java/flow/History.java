@@ -18,14 +18,15 @@ package flow;
 
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
 
 import static flow.Preconditions.checkArgument;
 import static java.util.Collections.unmodifiableList;
@@ -36,13 +37,21 @@ import static java.util.Collections.unmodifiableList;
  * <p><em>Note: use of this class as an {@link Iterable} is deprecated. Use {@link
  * #framesFromTop()}
  * and {@link #framesFromBottom()} instead.</em>
+ *
+ * <p>Histories are persistent: a history and the {@link Builder builders} derived from it share
+ * their frames, so pushing and popping allocate a constant amount regardless of depth. Each
+ * history also carries an index of its keys, maintained incrementally by its builder, so that
+ * {@link #indexOf} and {@link #contains} do not need to scan the frames.
  */
 public final class History implements Iterable<Object> {
 
-  private final List<Object> history;
+  private final Node top;
+  private final KeyIndex index;
+  /** Lazily built copy of the frames, bottom first, for random access. */
+  private Object[] frames;
 
   @NonNull public static Builder emptyBuilder() {
-    return new Builder(Collections.emptyList());
+    return new Builder(null, null);
   }
 
   /** Create a history that contains a single key. */
@@ -50,54 +59,81 @@ public final class History implements Iterable<Object> {
     return emptyBuilder().push(key).build();
   }
 
-  private static <T> Iterator<T> iterateFromBottom(List<Object> history) {
-    return new ReadStateIterator<>(history.iterator());
-  }
-
-  private static <T> Iterator<T> iterateFromTop(List<Object> history) {
-    return new ReadStateIterator<>(new ReverseIterator<>(history));
-  }
-
-  private History(List<Object> history) {
-    checkArgument(history != null && !history.isEmpty(), "History may not be empty");
-    this.history = history;
+  private History(Node top, KeyIndex index) {
+    checkArgument(top != null, "History may not be empty");
+    this.top = top;
+    this.index = index;
   }
 
   @NonNull public <T> Iterable<T> framesFromBottom() {
-    return new HistoryIterable<>(history, true);
+    return new HistoryIterable<>(this, true);
   }
 
   @NonNull public <T> Iterable<T> framesFromTop() {
-    return new HistoryIterable<>(history, false);
+    return new HistoryIterable<>(this, false);
   }
 
   /** @deprecated Use {@link #framesFromBottom()} instead. */
   @Deprecated @NonNull public <T> Iterator<T> reverseIterator() {
-    return iterateFromBottom(history);
+    return new ArrayIterator<>(frames());
   }
 
   /** @deprecated Use {@link #framesFromTop()} instead. */
   @Deprecated @NonNull @Override public Iterator<Object> iterator() {
-    return iterateFromTop(history);
+    return new NodeIterator<>(top);
   }
 
   public int size() {
-    return history.size();
+    return top.size;
   }
 
   @NonNull public <T> T top() {
-    return peek(0);
+    //noinspection unchecked
+    return (T) top.key;
   }
 
   /** Returns the app state at the provided index in history. 0 is the newest entry. */
   @NonNull public <T> T peek(int index) {
+    if (index == 0) return top();
     //noinspection unchecked
-    return (T) history.get(history.size() - index - 1);
+    return (T) frames()[top.size - index - 1];
+  }
+
+  /**
+   * Returns the index of the newest entry equal to the given key, suitable for {@link #peek}, or
+   * -1 if there is none. Keys are matched by {@link Object#hashCode()} and
+   * {@link Object#equals(Object)}.
+   */
+  public int indexOf(@NonNull Object key) {
+    final int position = index.highest(key, top.size);
+    return position < 0 ? -1 : top.size - position - 1;
+  }
+
+  /** Like {@link #indexOf} but finds the oldest entry equal to the given key. */
+  int lastIndexOf(@NonNull Object key) {
+    final int position = index.lowest(key, top.size);
+    return position < 0 ? -1 : top.size - position - 1;
+  }
+
+  /** Returns true if any entry in this history is equal to the given key. */
+  public boolean contains(@NonNull Object key) {
+    return index.highest(key, top.size) >= 0;
   }
 
   @NonNull List<Object> asList() {
-    final ArrayList<Object> copy = new ArrayList<>(history);
-    return unmodifiableList(copy);
+    return unmodifiableList(Arrays.asList(frames()));
+  }
+
+  private Object[] frames() {
+    Object[] frames = this.frames;
+    if (frames == null) {
+      frames = new Object[top.size];
+      for (Node node = top; node != null; node = node.below) {
+        frames[node.size - 1] = node.key;
+      }
+      this.frames = frames;
+    }
+    return frames;
   }
 
   /**
@@ -108,18 +144,27 @@ public final class History implements Iterable<Object> {
    * on; nothing will be lost in those operations.
    */
   @NonNull public Builder buildUpon() {
-    return new Builder(history);
+    return new Builder(top, index);
   }
 
   @Override public String toString() {
-    return Arrays.deepToString(history.toArray());
+    return Arrays.deepToString(frames());
   }
 
   public static final class Builder {
-    private final List<Object> history;
-
-    private Builder(Collection<Object> history) {
-      this.history = new ArrayList<>(history);
+    private Node top;
+    /** Index of the frames inherited from {@link #buildUpon()} that are still in the builder. */
+    @Nullable private KeyIndex base;
+    private int baseSize;
+    /** Positions of the keys pushed on top of {@link #base}. */
+    @Nullable private Map<Object, int[]> pushed;
+    /** Whether {@link #pushed} was handed to a built history, and must be copied to change. */
+    private boolean pushedShared;
+
+    private Builder(@Nullable Node top, @Nullable KeyIndex base) {
+      this.top = top;
+      this.base = base;
+      this.baseSize = top == null ? 0 : top.size;
     }
 
     /**
@@ -129,12 +174,11 @@ public final class History implements Iterable<Object> {
      * back on.
      */
     @NonNull public Builder clear() {
-      // Clear by popping everything (rather than just calling history.clear()) to
-      // fill up entryMemory. Otherwise we drop view state on the floor.
-      while (!isEmpty()) {
-        pop();
-      }
-
+      top = null;
+      base = null;
+      baseSize = 0;
+      pushed = null;
+      pushedShared = false;
       return this;
     }
 
@@ -144,7 +188,9 @@ public final class History implements Iterable<Object> {
      * from the builder, the key's associated state will be restored.
      */
     @NonNull public Builder push(@NonNull Object key) {
-      history.add(key);
+      top = new Node(key, top);
+      final Map<Object, int[]> pushed = pushedForWrite();
+      pushed.put(key, KeyIndex.append(pushed.get(key), top.size - 1));
       return this;
     }
 
@@ -161,11 +207,11 @@ public final class History implements Iterable<Object> {
 
     /** @return null if the history is empty. */
     @Nullable public Object peek() {
-      return history.isEmpty() ? null : history.get(history.size() - 1);
+      return top == null ? null : top.key;
     }
 
     @NonNull public boolean isEmpty() {
-      return history.isEmpty();
+      return top == null;
     }
 
     /**
@@ -180,7 +226,21 @@ public final class History implements Iterable<Object> {
       if (isEmpty()) {
         throw new IllegalStateException("Cannot pop from an empty builder");
       }
-      return history.remove(history.size() - 1);
+      final Object key = top.key;
+      final int position = top.size - 1;
+      if (position < baseSize) {
+        baseSize = position;
+      } else {
+        final Map<Object, int[]> pushed = pushedForWrite();
+        int[] positions = KeyIndex.removeLast(pushed.get(key));
+        if (positions == null) {
+          pushed.remove(key);
+        } else {
+          pushed.put(key, positions);
+        }
+      }
+      top = top.below;
+      return key;
     }
 
     /**
@@ -189,16 +249,13 @@ public final class History implements Iterable<Object> {
      * @throws IllegalArgumentException if the given state isn't in the history.
      */
     @NonNull public Builder popTo(@NonNull Object state) {
-      //noinspection ConstantConditions
-      while (!isEmpty() && !peek().equals(state)) {
-        pop();
-      }
-      checkArgument(!isEmpty(), String.format("%s not found in history", state));
-      return this;
+      final int position = highest(state);
+      checkArgument(position >= 0, String.format("%s not found in history", state));
+      return pop(top.size - position - 1);
     }
 
     @NonNull public Builder pop(int count) {
-      final int size = history.size();
+      final int size = top == null ? 0 : top.size;
       checkArgument(count <= size,
           String.format((Locale) null, "Cannot pop %d elements, history only has %d", count, size));
       while (count-- > 0) {
@@ -207,68 +264,206 @@ public final class History implements Iterable<Object> {
       return this;
     }
 
+    /**
+     * Returns a history of the keys currently in this builder. The builder may continue to be
+     * used; the history returned is not affected by later changes.
+     * <p>
+     * The history's index shares the positions of the keys pushed here, which are only copied if
+     * the builder is changed again, and is layered over the index of the history this was built
+     * upon. A history that would be the {@link KeyIndex#MAX_LAYERS}th layer reindexes all of its
+     * n frames instead, so a chain of histories each built upon the last costs amortized
+     * O(n / MAX_LAYERS) time per build, and lookups never walk more layers than that.
+     */
     @NonNull public History build() {
-      return new History(history);
+      checkArgument(top != null, "History may not be empty");
+      KeyIndex index;
+      if (pushed == null || pushed.isEmpty()) {
+        // Positions at or above the history's size are ignored, so the base can be shared as is.
+        index = base;
+      } else if (baseSize == 0 || base == null) {
+        index = new KeyIndex(null, 0, pushed);
+        pushedShared = true;
+      } else if (base.layers < KeyIndex.MAX_LAYERS) {
+        index = new KeyIndex(base, baseSize, pushed);
+        pushedShared = true;
+      } else {
+        index = KeyIndex.flatten(top);
+      }
+      //noinspection ConstantConditions
+      return new History(top, index);
+    }
+
+    private Map<Object, int[]> pushedForWrite() {
+      if (pushed == null) {
+        pushed = new HashMap<>();
+      } else if (pushedShared) {
+        pushed = new HashMap<>(pushed);
+      }
+      pushedShared = false;
+      return pushed;
+    }
+
+    /** @return the position from the bottom of the newest frame equal to key, or -1. */
+    private int highest(Object key) {
+      if (pushed != null) {
+        final int[] positions = pushed.get(key);
+        if (positions != null) return positions[positions.length - 1];
+      }
+      return base == null ? -1 : base.highest(key, baseSize);
     }
 
     @Override public String toString() {
-      return Arrays.deepToString(history.toArray());
+      return top == null ? "[]" : new History(top, KeyIndex.EMPTY).toString();
+    }
+  }
+
+  /**
+   * A cell of the persistent stack behind {@link History} and {@link Builder}. Nodes are never
+   * modified once created, so any number of histories may share them.
+   */
+  private static final class Node {
+    final Object key;
+    @Nullable final Node below;
+    /** The number of frames from the bottom of the stack up to and including this one. */
+    final int size;
+
+    Node(Object key, @Nullable Node below) {
+      this.key = key;
+      this.below = below;
+      this.size = below == null ? 1 : below.size + 1;
+    }
+  }
+
+  /**
+   * Maps keys to their positions, counted from the bottom of the stack. An index may be layered
+   * over the index of the history it was built upon, in which case it only holds the positions of
+   * keys pushed above the first {@link #baseSize} frames of its base. Once {@link #MAX_LAYERS}
+   * would be stacked, the history's frames are indexed afresh with a single layer.
+   */
+  private static final class KeyIndex {
+    static final int MAX_LAYERS = 8;
+    static final KeyIndex EMPTY =
+        new KeyIndex(null, 0, Collections.<Object, int[]>emptyMap());
+
+    static KeyIndex flatten(Node top) {
+      final Map<Object, int[]> positions = new HashMap<>();
+      final Object[] frames = new Object[top.size];
+      for (Node node = top; node != null; node = node.below) {
+        frames[node.size - 1] = node.key;
+      }
+      for (int i = 0; i < frames.length; i++) {
+        positions.put(frames[i], append(positions.get(frames[i]), i));
+      }
+      return new KeyIndex(null, 0, positions);
+    }
+
+    static int[] append(@Nullable int[] positions, int position) {
+      if (positions == null) return new int[] { position };
+      final int[] grown = Arrays.copyOf(positions, positions.length + 1);
+      grown[positions.length] = position;
+      return grown;
+    }
+
+    @Nullable static int[] removeLast(int[] positions) {
+      if (positions.length == 1) return null;
+      return Arrays.copyOf(positions, positions.length - 1);
+    }
+
+    @Nullable final KeyIndex base;
+    final int baseSize;
+    /** Ascending positions of each key, all at or above {@link #baseSize}. */
+    final Map<Object, int[]> positions;
+    final int layers;
+
+    KeyIndex(@Nullable KeyIndex base, int baseSize, Map<Object, int[]> positions) {
+      this.base = base;
+      this.baseSize = baseSize;
+      this.positions = positions;
+      this.layers = base == null ? 1 : base.layers + 1;
+    }
+
+    /** @return the greatest position of key below limit, or -1. */
+    int highest(Object key, int limit) {
+      final int[] own = positions.get(key);
+      if (own != null) {
+        for (int i = own.length - 1; i >= 0; i--) {
+          if (own[i] < limit) return own[i];
+        }
+      }
+      return base == null ? -1 : base.highest(key, Math.min(limit, baseSize));
+    }
+
+    /** @return the least position of key below limit, or -1. */
+    int lowest(Object key, int limit) {
+      if (base != null) {
+        final int position = base.lowest(key, Math.min(limit, baseSize));
+        if (position >= 0) return position;
+      }
+      final int[] own = positions.get(key);
+      return own != null && own[0] < limit ? own[0] : -1;
     }
   }
 
   private static class HistoryIterable<T> implements Iterable<T> {
-    private final List<Object> history;
+    private final History history;
     private final boolean fromBottom;
 
-    HistoryIterable(List<Object> history, boolean fromBottom) {
+    HistoryIterable(History history, boolean fromBottom) {
       this.history = history;
       this.fromBottom = fromBottom;
     }
 
     @NonNull @Override public Iterator<T> iterator() {
       if (fromBottom) {
-        return iterateFromBottom(history);
+        return new ArrayIterator<>(history.frames());
       } else {
-        return iterateFromTop(history);
+        return new NodeIterator<>(history.top);
       }
     }
   }
 
-  private static class ReverseIterator<T> implements Iterator<T> {
-    private final ListIterator<T> wrapped;
+  /** Walks the frames from the top down. Throws on {@link #remove()}. */
+  private static class NodeIterator<T> implements Iterator<T> {
+    private Node next;
 
-    ReverseIterator(List<T> list) {
-      wrapped = list.listIterator(list.size());
+    NodeIterator(Node top) {
+      next = top;
     }
 
     @Override public boolean hasNext() {
-      return wrapped.hasPrevious();
+      return next != null;
     }
 
     @Override public T next() {
-      return wrapped.previous();
+      if (next == null) throw new NoSuchElementException();
+      //noinspection unchecked
+      final T key = (T) next.key;
+      next = next.below;
+      return key;
     }
 
     @Override public void remove() {
-      wrapped.remove();
+      throw new UnsupportedOperationException();
     }
   }
 
-  /** Wraps an {@link Iterator} and delegates to it, but throws on {@link #remove()}. */
-  private static class ReadStateIterator<T> implements Iterator<T> {
-    private final Iterator<Object> iterator;
+  /** Walks the frames from the bottom up. Throws on {@link #remove()}. */
+  private static class ArrayIterator<T> implements Iterator<T> {
+    private final Object[] frames;
+    private int index;
 
-    ReadStateIterator(Iterator<Object> iterator) {
-      this.iterator = iterator;
+    ArrayIterator(Object[] frames) {
+      this.frames = frames;
     }
 
     @Override public boolean hasNext() {
-      return iterator.hasNext();
+      return index < frames.length;
     }
 
     @Override public T next() {
+      if (index >= frames.length) throw new NoSuchElementException();
       //noinspection unchecked
-      return (T) iterator.next();
+      return (T) frames[index++];
     }
 
     @Override public void remove() {
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A minimal edit script turning the {@link Traversal#origin} of a traversal into its {@link
+ * Traversal#destination}. Frames that appear in both histories, in the same relative order, are
+ * {@link Change#KEPT kept}; everything else was either {@link Change#REMOVED removed} from the
+ * origin or {@link Change#INSERTED inserted} into the destination.
+ *
+ * <p>Dispatchers can use this to leave alone frames that did not change, even if they are above
+ * one that did.
+ */
+public final class HistoryDiff {
+  public enum Change {
+    KEPT, INSERTED, REMOVED
+  }
+
+  public static final class Edit {
+    @NonNull public final Change change;
+    /** For {@link Change#KEPT kept} frames, this is the instance from the origin. */
+    @NonNull public final Object key;
+    /** Position of the frame in the origin, counted from the bottom; -1 if inserted. */
+    public final int originPosition;
+    /** Position of the frame in the destination, counted from the bottom; -1 if removed. */
+    public final int destinationPosition;
+
+    Edit(Change change, Object key, int originPosition, int destinationPosition) {
+      this.change = change;
+      this.key = key;
+      this.originPosition = originPosition;
+      this.destinationPosition = destinationPosition;
+    }
+
+    @Override public String toString() {
+      return change + " " + key;
+    }
+  }
+
+  /**
+   * Computes the diff based on the longest common subsequence of the two histories, compared with
+   * {@link Object#equals(Object)}. Common prefixes and suffixes are matched first, so the quadratic
+   * part of the work only covers the frames in between.
+   */
+  @NonNull static HistoryDiff between(@Nullable History origin, @NonNull History destination) {
+    final List<Object> from =
+        origin == null ? Collections.emptyList() : origin.asList();
+    final List<Object> to = destination.asList();
+    final int fromSize = from.size();
+    final int toSize = to.size();
+    final List<Edit> edits = new ArrayList<>(Math.max(fromSize, toSize));
+
+    int prefix = 0;
+    while (prefix < fromSize && prefix < toSize && from.get(prefix).equals(to.get(prefix))) {
+      prefix++;
+    }
+    int suffix = 0;
+    while (suffix < fromSize - prefix && suffix < toSize - prefix //
+        && from.get(fromSize - suffix - 1).equals(to.get(toSize - suffix - 1))) {
+      suffix++;
+    }
+
+    for (int i = 0; i < prefix; i++) {
+      edits.add(new Edit(Change.KEPT, from.get(i), i, i));
+    }
+
+    // lengths[i][j] is the length of the common subsequence of from[i..] and to[j..].
+    final int rows = fromSize - prefix - suffix;
+    final int columns = toSize - prefix - suffix;
+    final int[][] lengths = new int[rows + 1][columns + 1];
+    for (int i = rows - 1; i >= 0; i--) {
+      for (int j = columns - 1; j >= 0; j--) {
+        if (from.get(prefix + i).equals(to.get(prefix + j))) {
+          lengths[i][j] = lengths[i + 1][j + 1] + 1;
+        } else {
+          lengths[i][j] = Math.max(lengths[i + 1][j], lengths[i][j + 1]);
+        }
+      }
+    }
+
+    int i = 0;
+    int j = 0;
+    while (i < rows || j < columns) {
+      final int fromPosition = prefix + i;
+      final int toPosition = prefix + j;
+      if (i < rows && j < columns && from.get(fromPosition).equals(to.get(toPosition))) {
+        edits.add(new Edit(Change.KEPT, from.get(fromPosition), fromPosition, toPosition));
+        i++;
+        j++;
+      } else if (j == columns || (i < rows && lengths[i + 1][j] >= lengths[i][j + 1])) {
+        edits.add(new Edit(Change.REMOVED, from.get(fromPosition), fromPosition, -1));
+        i++;
+      } else {
+        edits.add(new Edit(Change.INSERTED, to.get(toPosition), -1, toPosition));
+        j++;
+      }
+    }
+
+    for (int k = suffix; k > 0; k--) {
+      edits.add(new Edit(Change.KEPT, from.get(fromSize - k), fromSize - k, toSize - k));
+    }
+    return new HistoryDiff(edits);
+  }
+
+  private final List<Edit> edits;
+
+  private HistoryDiff(List<Edit> edits) {
+    this.edits = Collections.unmodifiableList(edits);
+  }
+
+  /** All edits, ordered from the bottom of the histories to the top. */
+  @NonNull public List<Edit> getEdits() {
+    return edits;
+  }
+
+  /** Keys of the origin that are not in the destination, from the bottom. */
+  @NonNull public List<Object> getRemoved() {
+    return keysWith(Change.REMOVED);
+  }
+
+  /** Keys of the destination that were not in the origin, from the bottom. */
+  @NonNull public List<Object> getInserted() {
+    return keysWith(Change.INSERTED);
+  }
+
+  /** True if the origin and destination hold equal keys in the same order. */
+  public boolean isEmpty() {
+    for (Edit edit : edits) {
+      if (edit.change != Change.KEPT) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Returns the destination history, but with the origin's instances of any {@link Change#KEPT
+   * kept} keys.
+   */
+  @NonNull History preservingOrigin() {
+    History.Builder builder = History.emptyBuilder();
+    for (Edit edit : edits) {
+      if (edit.change != Change.REMOVED) {
+        //noinspection CheckResult
+        builder.push(edit.key);
+      }
+    }
+    return builder.build();
+  }
+
+  private List<Object> keysWith(Change change) {
+    final List<Object> keys = new ArrayList<>();
+    for (Edit edit : edits) {
+      if (edit.change == change) keys.add(edit.key);
+    }
+    return keys;
+  }
+
+  @Override public String toString() {
+    return edits.toString();
+  }
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow;
+
+import android.support.annotation.NonNull;
+
+/**
+ * One step of a {@link Flow#batch batch} of history changes, applied to a builder that holds the
+ * result of the steps before it. Edits may be applied more than once, for instance when queued
+ * traversals are {@link Flow#setCoalescing coalesced}, and so should not have side effects.
+ */
+public interface HistoryEdit {
+  void apply(@NonNull History.Builder builder);
+}
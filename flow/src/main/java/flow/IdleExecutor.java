@@ -0,0 +1,53 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow;
+
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.support.annotation.NonNull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs commands the next time the current thread's {@link Looper} runs out of messages to handle,
+ * in the order they were given. Must be created and used on a Looper thread.
+ */
+final class IdleExecutor implements Executor, MessageQueue.IdleHandler {
+  private final MessageQueue queue = Looper.myQueue();
+  private final List<Runnable> commands = new ArrayList<>();
+  private boolean registered;
+
+  @Override public void execute(@NonNull Runnable command) {
+    commands.add(command);
+    if (!registered) {
+      registered = true;
+      queue.addIdleHandler(this);
+    }
+  }
+
+  @Override public boolean queueIdle() {
+    // Commands given while these run wait for the next idle time.
+    final List<Runnable> batch = new ArrayList<>(commands);
+    commands.clear();
+    for (Runnable command : batch) {
+      command.run();
+    }
+    registered = !commands.isEmpty();
+    return registered;
+  }
+}
@@ -19,10 +19,15 @@ package flow;
 import android.app.Activity;
 import android.app.Application;
 import android.content.Context;
+import android.os.AsyncTask;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executor;
+
+import static flow.Preconditions.checkArgument;
 
 public final class Installer {
 
@@ -33,6 +38,18 @@ public final class Installer {
   private Object defaultKey;
   private Dispatcher dispatcher;
   private HistoryCallback historyCallback;
+  private FlowMonitor monitor;
+  private int retainedStates;
+  private int retainedStateBytes;
+  private int warmServices;
+  private long warmServicesTtlMillis;
+  private Executor bindExecutor;
+  private Executor scopeExecutor;
+  private Executor tearDownExecutor;
+  private long memoryBudgetBytes;
+  private boolean compactViewState;
+  private StateStore stateStore;
+  private int spillThresholdBytes;
 
   Installer(Context baseContext, Activity activity) {
     this.baseContext = baseContext;
@@ -59,11 +76,117 @@ public final class Installer {
     return this;
   }
 
+  /** Reports the phases of each traversal to the given monitor. None by default. */
+  @NonNull public Installer monitor(@Nullable FlowMonitor monitor) {
+    this.monitor = monitor;
+    return this;
+  }
+
+  /**
+   * Bounds the saved {@link State} kept for keys after they leave the history, so that it can be
+   * restored if they are navigated to again. The least recently used states are discarded first.
+   * By default, or given zero, states are discarded as soon as their keys leave the history.
+   */
+  @NonNull public Installer stateRetention(int maxStates, int maxBytes) {
+    checkArgument(maxStates >= 0 && maxBytes >= 0, "limits may not be negative");
+    this.retainedStates = maxStates;
+    this.retainedStateBytes = maxBytes;
+    return this;
+  }
+
+  /**
+   * Delays tearing down the services of keys that leave the history, so that they can be given
+   * back right away if a key is navigated to again. Up to the given number of keys are kept
+   * before {@link ServicesFactory#tearDownServices} is called. The time limit is only checked when
+   * keys are next set up or torn down, so without further navigation warm services can outlive
+   * it. Off by default.
+   */
+  @NonNull public Installer keepServicesWarm(int maxKeys, long ttlMillis) {
+    checkArgument(maxKeys >= 0 && ttlMillis >= 0, "limits may not be negative");
+    this.warmServices = maxKeys;
+    this.warmServicesTtlMillis = ttlMillis;
+    return this;
+  }
+
+  /**
+   * Lets factories that declare the services they {@link ServicesFactory#getProducedServices
+   * produce} and {@link ServicesFactory#getConsumedServices consume} be bound concurrently on the
+   * given executor, when they do not depend on each other. Teardown is unaffected, and still runs
+   * in the reverse of the order factories were added.
+   */
+  @NonNull public Installer bindServicesOn(@Nullable Executor executor) {
+    this.bindExecutor = executor;
+    return this;
+  }
+
+  /**
+   * Sets the executor on which work given to a {@link Scope#getExecutor() scope's executor} runs.
+   * Defaults to {@link AsyncTask#THREAD_POOL_EXECUTOR}.
+   */
+  @NonNull public Installer scopeExecutor(@Nullable Executor executor) {
+    this.scopeExecutor = executor;
+    return this;
+  }
+
+  /**
+   * Sets the executor on which factories that {@link ServicesFactory#isTearDownAsync() allow it}
+   * tear down their services. Null, the default, tears every factory down on the main thread.
+   * Other factories are always torn down on the main thread.
+   */
+  @NonNull public Installer tearDownServicesOn(@Nullable Executor executor) {
+    this.tearDownExecutor = executor;
+    return this;
+  }
+
+  /**
+   * Sets how many bytes the {@link Services.Sizer sizers} of every key that is set up may report
+   * in total. Past it, keys out of view are asked to trim after each traversal, least recently set
+   * up first. Keys out of view are also asked to trim when the system is low on memory, budget or
+   * not. Zero, the default, sets no budget.
+   */
+  @NonNull public Installer memoryBudget(long bytes) {
+    this.memoryBudgetBytes = bytes;
+    return this;
+  }
+
+  /**
+   * Once a key is covered by another in the history, marshals the view state it saved into a
+   * single compact buffer rather than keeping every view's state as live objects. It is
+   * unmarshalled when the key is restored. This is done along with the teardown of keys left
+   * behind, so it is deferred with it. Saves heap in deep histories, at the cost of the copies.
+   * Off by default.
+   */
+  @NonNull public Installer compactViewState(boolean compact) {
+    this.compactViewState = compact;
+    return this;
+  }
+
+  /**
+   * Writes the saved state of frames that marshal to more than the given number of bytes to the
+   * store, rather than to the Activity's saved instance state. It is read back the first time it
+   * is needed after the Activity is restored.
+   */
+  @NonNull public Installer stateStore(@Nullable StateStore store, int spillThresholdBytes) {
+    this.stateStore = store;
+    this.spillThresholdBytes = spillThresholdBytes;
+    return this;
+  }
+
+  /**
+   * Like {@link #stateStore}, with a store that writes to a directory private to the app. Each
+   * save writes one file, and deletes the one this Activity wrote before it. Activities share the
+   * directory, so each only ever deletes its own files.
+   */
+  @NonNull public Installer spillStateToDisk(int spillThresholdBytes) {
+    return stateStore(new FileStateStore(new File(baseContext.getFilesDir(), "flow-state")),
+        spillThresholdBytes);
+  }
+
   /**
    * Applies a factory when creating a Context associated with a given key.
    *
    * May be called multiple times. Factories are called in the order given during setup, and
-   * in reverse order during teardown.
+   * in reverse order during teardown. Each is only called for the key types it was created with.
    */
   @NonNull public Installer addServicesFactory(@NonNull ServicesFactory factory) {
     contextFactories.add(factory);
@@ -93,9 +216,18 @@ public final class Installer {
 
     final History defaultHistory = History.single(defState);
     final Application app = (Application) baseContext.getApplicationContext();
-    final KeyManager keyManager = new KeyManager(contextFactories);
+    final KeyManager keyManager = new KeyManager(new ServicesFactoryTable(contextFactories));
+    keyManager.setStateRetention(retainedStates, retainedStateBytes);
+    keyManager.setWarmServices(warmServices, warmServicesTtlMillis);
+    keyManager.setBindExecutor(bindExecutor);
+    keyManager.setTearDownExecutor(tearDownExecutor,
+        tearDownExecutor == null ? null : new MainThreadExecutor());
+    keyManager.setMemoryBudget(memoryBudgetBytes);
+    keyManager.setCompactViewStates(compactViewState);
+    keyManager.setScopeExecutor(
+        scopeExecutor == null ? AsyncTask.THREAD_POOL_EXECUTOR : scopeExecutor);
     InternalLifecycleIntegration.install(app, activity, parceler, defaultHistory, dispatcher,
-        keyManager, historyCallback);
+        keyManager, historyCallback, monitor, stateStore, spillThresholdBytes);
     return new InternalContextWrapper(baseContext, activity);
   }
 }
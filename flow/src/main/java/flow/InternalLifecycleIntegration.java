@@ -24,7 +24,9 @@ import android.os.Bundle;
 import android.os.Parcelable;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
 
 import static flow.Preconditions.checkArgument;
 import static flow.Preconditions.checkNotNull;
@@ -37,6 +39,7 @@ public final class InternalLifecycleIntegration extends Fragment {
   static final String PERSISTENCE_KEY =
       InternalLifecycleIntegration.class.getSimpleName() + "_state";
   static final String INTENT_KEY = InternalLifecycleIntegration.class.getSimpleName() + "_history";
+  static final String SEGMENT_KEY = InternalLifecycleIntegration.class.getSimpleName() + "_segment";
 
   static @Nullable InternalLifecycleIntegration find(Activity activity) {
     return (InternalLifecycleIntegration) activity.getFragmentManager().findFragmentByTag(TAG);
@@ -54,7 +57,8 @@ public final class InternalLifecycleIntegration extends Fragment {
   static void install(final Application app, final Activity activity,
       @Nullable final KeyParceler parceler, final History defaultHistory,
       final Dispatcher dispatcher, final KeyManager keyManager,
-      final HistoryCallback historyCallback) {
+      final HistoryCallback historyCallback, @Nullable final FlowMonitor monitor,
+      @Nullable final StateStore stateStore, final int spillThresholdBytes) {
     app.registerActivityLifecycleCallbacks(new Application.ActivityLifecycleCallbacks() {
       @Override public void onActivityCreated(Activity a, Bundle savedInstanceState) {
         if (a == activity) {
@@ -67,6 +71,9 @@ public final class InternalLifecycleIntegration extends Fragment {
             fragment.defaultHistory = defaultHistory;
             fragment.parceler = parceler;
             fragment.keyManager = keyManager;
+            fragment.monitor = monitor;
+            fragment.stateStore = stateStore;
+            fragment.spillThresholdBytes = spillThresholdBytes;
           }
           // We always replace the dispatcher because it frequently references the Activity.
           fragment.dispatcher = dispatcher;
@@ -110,6 +117,11 @@ public final class InternalLifecycleIntegration extends Fragment {
   Dispatcher dispatcher;
   Intent intent;
   HistoryCallback historyCallback;
+  @Nullable FlowMonitor monitor;
+  @Nullable StateStore stateStore;
+  int spillThresholdBytes;
+  /** The store's segments that this Activity wrote or was restored from, and may delete. */
+  final List<String> segments = new ArrayList<>();
   private boolean dispatcherSet;
 
   public InternalLifecycleIntegration() {
@@ -132,7 +144,8 @@ public final class InternalLifecycleIntegration extends Fragment {
       checkNotNull(parceler,
           "Intent has a Flow history extra, but Flow was not installed with a KeyParceler");
       History.Builder builder = History.emptyBuilder();
-      load((Bundle) intent.getParcelableExtra(INTENT_KEY), parceler, builder, keyManager);
+      load((Bundle) intent.getParcelableExtra(INTENT_KEY), parceler, builder, keyManager,
+          stateStore);
       flow.setHistory(builder.build(), Direction.REPLACE);
     }
   }
@@ -145,11 +158,14 @@ public final class InternalLifecycleIntegration extends Fragment {
         checkNotNull(parceler, "no KeyParceler installed");
         History.Builder builder = History.emptyBuilder();
         Bundle bundle = savedInstanceState.getParcelable(INTENT_KEY);
-        load(bundle, parceler, builder, keyManager);
+        load(bundle, parceler, builder, keyManager, stateStore);
+        String segment = bundle.getString(SEGMENT_KEY);
+        if (segment != null) segments.add(segment);
         savedHistory = builder.build();
       }
       History history = selectHistory(intent, savedHistory, defaultHistory, parceler, keyManager);
       flow = new Flow(keyManager, history);
+      flow.setMonitor(monitor);
       flow.setDispatcher(dispatcher, false);
     } else {
       flow.setDispatcher(dispatcher, true);
@@ -173,10 +189,17 @@ public final class InternalLifecycleIntegration extends Fragment {
   }
 
   @Override public void onDestroy() {
+    flow.tearDownDeferred();
     keyManager.tearDown(flow.getHistory().top());
+    keyManager.tearDownWarmServices();
     super.onDestroy();
   }
 
+  @Override public void onTrimMemory(int level) {
+    super.onTrimMemory(level);
+    if (flow != null) keyManager.trimMemory(level, flow.getHistory().top());
+  }
+
   @Override public void onSaveInstanceState(Bundle outState) {
     super.onSaveInstanceState(outState);
     checkArgument(outState != null, "outState may not be null");
@@ -185,7 +208,8 @@ public final class InternalLifecycleIntegration extends Fragment {
     }
 
     Bundle bundle = new Bundle();
-    save(bundle, parceler, flow.getFilteredHistory(), keyManager);
+    save(bundle, parceler, flow.getFilteredHistory(), keyManager, stateStore, spillThresholdBytes,
+        segments);
     if (!bundle.isEmpty()) {
       outState.putParcelable(INTENT_KEY, bundle);
     }
@@ -200,30 +224,56 @@ public final class InternalLifecycleIntegration extends Fragment {
       checkNotNull(parceler,
           "Intent has a Flow history extra, but Flow was not installed with a KeyParceler");
       History.Builder history = History.emptyBuilder();
-      load(intent.<Bundle>getParcelableExtra(INTENT_KEY), parceler, history, keyManager);
+      load(intent.<Bundle>getParcelableExtra(INTENT_KEY), parceler, history, keyManager, null);
       return history.build();
     }
     return defaultHistory;
   }
 
   private static void save(Bundle bundle, KeyParceler parceler, History history,
-      KeyManager keyManager) {
+      KeyManager keyManager, @Nullable StateStore store, int spillThresholdBytes,
+      List<String> segments) {
     ArrayList<Parcelable> parcelables = new ArrayList<>(history.size());
+    List<byte[]> segment = new ArrayList<>();
     for (Object key : history.framesFromBottom()) {
       if (!key.getClass().isAnnotationPresent(NotPersistent.class)) {
-        parcelables.add(keyManager.getState(key).toBundle(parceler));
+        State state = keyManager.getState(key);
+        parcelables.add(store == null ? state.toBundle(parceler)
+            : state.toBundle(parceler, segment, spillThresholdBytes));
+      }
+    }
+    if (store != null) {
+      String token = null;
+      if (!segment.isEmpty()) {
+        try {
+          token = store.write(segment);
+          bundle.putString(SEGMENT_KEY, token);
+        } catch (IOException e) {
+          // Keep everything in the Bundle then, and hope it fits.
+          for (int i = 0; i < parcelables.size(); i++) {
+            parcelables.set(i, State.unspill((Bundle) parcelables.get(i), segment));
+          }
+        }
+      }
+      // Older segments are no longer needed once what other states left in them is read back.
+      keyManager.loadSpilledStates();
+      for (String older : segments) {
+        if (!older.equals(token)) store.delete(older);
       }
+      segments.clear();
+      if (token != null) segments.add(token);
     }
     bundle.putParcelableArrayList(PERSISTENCE_KEY, parcelables);
   }
 
   private static void load(Bundle bundle, KeyParceler parceler, History.Builder builder,
-      KeyManager keyManager) {
+      KeyManager keyManager, @Nullable StateStore store) {
     if (!bundle.containsKey(PERSISTENCE_KEY)) return;
     ArrayList<Parcelable> stateBundles = bundle.getParcelableArrayList(PERSISTENCE_KEY);
+    String segment = bundle.getString(SEGMENT_KEY);
     //noinspection ConstantConditions
     for (Parcelable stateBundle : stateBundles) {
-      State state = State.fromBundle((Bundle) stateBundle, parceler);
+      State state = State.fromBundle((Bundle) stateBundle, parceler, store, segment);
       builder.push(state.getKey());
       if (!keyManager.hasState(state.getKey())) {
         keyManager.addState(state);
@@ -61,7 +61,8 @@ public final class KeyDispatcher implements Dispatcher {
     this.keyChanger = keyChanger;
   }
 
-  @Override public void dispatch(@NonNull Traversal traversal, @NonNull TraversalCallback callback) {
+  @Override public void dispatch(@NonNull Traversal traversal,
+      @NonNull TraversalCallback callback) {
     State inState = traversal.getState(traversal.destination.top());
     Object inKey = inState.getKey();
     State outState = traversal.origin == null ? null : traversal.getState(traversal.origin.top());
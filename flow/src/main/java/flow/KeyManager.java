@@ -16,57 +16,278 @@
 
 package flow;
 
+import android.content.ComponentCallbacks2;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
+import static flow.Preconditions.checkArgument;
+
+/**
+ * Sets up and tears down the services of keys, and holds their {@link State}. Synchronized, since
+ * keys may be set up off the main thread for a {@link PreparingDispatcher}.
+ */
 class KeyManager {
   static final Object ROOT_KEY = new Object() {
     @Override public String toString() {
       return KeyManager.class.getSimpleName() + ".ROOT";
     }
   };
+
   private final Map<Object, ManagedServices> managedServices = new LinkedHashMap<>();
+  /**
+   * Services of keys that are no longer in use, but have not been torn down yet, in the order they
+   * were released. A key that is set up again gets them back without binding anything.
+   */
+  private final Map<Object, WarmServices> warmServices = new LinkedHashMap<>();
+  private int maxWarmServices;
+  private long warmServicesTtlNanos;
+  private long memoryBudgetBytes;
+
   private final Map<Object, State> states = new LinkedHashMap<>();
+  /**
+   * States of keys that left the history, least recently used first. They are given back if the
+   * key is navigated to again before they are evicted.
+   */
+  private final Map<Object, RetainedState> retainedStates =
+      new LinkedHashMap<>(16, 0.75f, true);
+  private int retainedBytes;
+  private int maxRetainedStates;
+  private int maxRetainedBytes;
+  private boolean compactViewStates;
 
-  private final List<ServicesFactory> servicesFactories = new ArrayList<>();
+  private final ServicesFactoryTable servicesFactories;
+  @Nullable private Executor bindExecutor;
+  /** Keys whose services are being bound, which is done without holding the lock. */
+  private final Set<Object> binding = new HashSet<>();
+  @Nullable private Executor scopeExecutor;
+  @Nullable private Executor tearDownExecutor;
+  @Nullable private Executor mainExecutor;
+  /**
+   * Teardowns not finished yet, oldest first. They run one at a time in this order, so children
+   * are still torn down before their parents, and factories in reverse, when some of them run on
+   * the {@link #tearDownExecutor}.
+   */
+  private final Deque<TearDownStep> tearDowns = new ArrayDeque<>();
+  private final Runnable continueTearDowns = new Runnable() {
+    @Override public void run() {
+      synchronized (KeyManager.this) {
+        runTearDowns(true);
+      }
+    }
+  };
 
   KeyManager(List<ServicesFactory> servicesFactories) {
-    this.servicesFactories.addAll(servicesFactories);
+    this(new ServicesFactoryTable(servicesFactories));
+  }
+
+  KeyManager(ServicesFactoryTable servicesFactories) {
+    this.servicesFactories = servicesFactories;
     managedServices.put(ROOT_KEY, new ManagedServices(Services.ROOT_SERVICES));
   }
 
 
-  boolean hasState(Object key) {
+  synchronized boolean hasState(Object key) {
     return states.containsKey(key);
   }
 
-  void addState(State state) {
+  synchronized void addState(State state) {
+    final RetainedState retained = retainedStates.remove(state.getKey());
+    if (retained != null) retainedBytes -= retained.bytes;
     states.put(state.getKey(), state);
   }
 
-  State getState(Object key) {
+  synchronized State getState(Object key) {
     State state = states.get(key);
     if (state == null) {
-      state = new State(key);
-      addState(state);
+      final RetainedState retained = retainedStates.remove(key);
+      if (retained != null) {
+        retainedBytes -= retained.bytes;
+        state = retained.state;
+      } else {
+        state = new State(key);
+      }
+      states.put(key, state);
     }
     return state;
   }
 
-  void clearStatesExcept(List<Object> keep) {
-    Iterator<Object> keys = states.keySet().iterator();
-    while (keys.hasNext()) {
-      final Object key = keys.next();
-      if (!keep.contains(key)) keys.remove();
+  /**
+   * Sets the executor on which factories that declare their services may be bound concurrently.
+   * The thread setting up a key takes part, and waits for the others before publishing its
+   * services. Null, the default, binds every factory on that thread.
+   */
+  synchronized void setBindExecutor(@Nullable Executor executor) {
+    this.bindExecutor = executor;
+  }
+
+  /** Sets the executor that runs the work given to each {@link Scope#getExecutor() scope}. */
+  synchronized void setScopeExecutor(@Nullable Executor executor) {
+    this.scopeExecutor = executor;
+  }
+
+  /**
+   * Sets the executor on which factories that {@link ServicesFactory#isTearDownAsync() allow it}
+   * are torn down. Null, the default, tears down every factory on the calling thread. Other
+   * factories are still torn down on the thread that released the key, or on the main executor
+   * once the executor is done with those torn down before them.
+   */
+  synchronized void setTearDownExecutor(@Nullable Executor executor,
+      @Nullable Executor mainExecutor) {
+    checkArgument(executor == null || mainExecutor != null,
+        "A main executor is needed to tear down services on another executor");
+    this.tearDownExecutor = executor;
+    this.mainExecutor = mainExecutor;
+  }
+
+  /**
+   * Keeps the services of up to the given number of released keys for the given time before
+   * tearing them down. Expiry is checked lazily, whenever a key is set up or released. Pass zero
+   * to tear services down as soon as they are released, which is the default.
+   */
+  synchronized void setWarmServices(int maxKeys, long ttlMillis) {
+    this.maxWarmServices = maxKeys;
+    this.warmServicesTtlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    trimWarmServices(System.nanoTime());
+  }
+
+  /** Tears down all services that were kept warm. */
+  synchronized void tearDownWarmServices() {
+    final Iterator<WarmServices> eldest = warmServices.values().iterator();
+    while (eldest.hasNext()) {
+      tearDownServices(eldest.next().managed);
+      eldest.remove();
     }
   }
 
-  Services findServices(Object key) {
+  /**
+   * Sets how many bytes the {@link Services.Sizer sizers} of all set up keys may report before
+   * the ones out of view are asked to trim. Zero, the default, only trims on {@link #trimMemory}.
+   */
+  synchronized void setMemoryBudget(long bytes) {
+    this.memoryBudgetBytes = bytes;
+  }
+
+  /**
+   * Responds to {@link ComponentCallbacks2#onTrimMemory}: asks every set up key but the visible one
+   * and what it uses to trim, passing the level on. Warm services are only torn down under real
+   * memory pressure, not when the UI is merely hidden, since that happens on every backgrounding.
+   */
+  synchronized void trimMemory(int level, @Nullable Object visible) {
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+        && level != ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+      tearDownWarmServices();
+    } else {
+      trimWarmServices(System.nanoTime());
+    }
+    trimScopes(level, visible, 0);
+  }
+
+  /** Trims keys out of view, least recently set up first, until within the memory budget. */
+  synchronized void trimToMemoryBudget(@Nullable Object visible) {
+    if (memoryBudgetBytes <= 0) return;
+    trimScopes(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE, visible, memoryBudgetBytes);
+  }
+
+  /** With a budget of zero, every scope out of view is trimmed. */
+  private void trimScopes(int level, @Nullable Object visible, long budgetBytes) {
+    final Set<Object> inView = uses(visible).keySet();
+    long total = 0;
+    if (budgetBytes > 0) {
+      for (ManagedServices node : managedServices.values()) {
+        total += node.services.getScope().estimateBytes();
+      }
+    }
+    for (Map.Entry<Object, ManagedServices> entry : managedServices.entrySet()) {
+      if (budgetBytes > 0 && total <= budgetBytes) return;
+      final Object key = entry.getKey();
+      if (key == ROOT_KEY || inView.contains(key)) continue;
+      final Scope scope = entry.getValue().services.getScope();
+      if (budgetBytes > 0) {
+        final long before = scope.estimateBytes();
+        if (before == 0) continue;
+        scope.trimMemory(level);
+        total -= before - scope.estimateBytes();
+      } else {
+        scope.trimMemory(level);
+      }
+    }
+  }
+
+  /**
+   * Bounds the states kept for keys that are no longer in the history, by count and by their
+   * {@link State#estimateBytes() estimated size}. Pass zero for either to keep none.
+   */
+  synchronized void setStateRetention(int maxStates, int maxBytes) {
+    this.maxRetainedStates = maxStates;
+    this.maxRetainedBytes = maxBytes;
+    trimRetainedStates();
+  }
+
+  /** Whether to {@link State#compactViewState() compact} the view state of keys left behind. */
+  synchronized void setCompactViewStates(boolean compact) {
+    this.compactViewStates = compact;
+  }
+
+  /** Called when the key is still in the history, but no longer on top of it. */
+  synchronized void compactState(Object key) {
+    if (!compactViewStates) return;
+    final State state = states.get(key);
+    if (state != null) state.compactViewState();
+  }
+
+  /**
+   * Reads the states still in a {@link StateStore} segment into memory, including retained ones,
+   * before the segment is deleted.
+   */
+  synchronized void loadSpilledStates() {
+    for (State state : states.values()) {
+      state.loadSpilled();
+    }
+    for (RetainedState retained : retainedStates.values()) {
+      retained.state.loadSpilled();
+    }
+  }
+
+  /** Moves the states of any keys not in the given list to the retention cache. */
+  synchronized void clearStatesExcept(List<Object> keep) {
+    final Set<Object> kept = new HashSet<>(keep);
+    final Iterator<Map.Entry<Object, State>> entries = states.entrySet().iterator();
+    while (entries.hasNext()) {
+      final Map.Entry<Object, State> entry = entries.next();
+      if (!kept.contains(entry.getKey())) {
+        entries.remove();
+        final RetainedState retained = new RetainedState(entry.getValue());
+        retainedStates.put(entry.getKey(), retained);
+        retainedBytes += retained.bytes;
+      }
+    }
+    trimRetainedStates();
+  }
+
+  private void trimRetainedStates() {
+    final Iterator<RetainedState> eldest = retainedStates.values().iterator();
+    while (eldest.hasNext()
+        && (retainedStates.size() > maxRetainedStates || retainedBytes > maxRetainedBytes)) {
+      retainedBytes -= eldest.next().bytes;
+      eldest.remove();
+    }
+  }
+
+  synchronized Services findServices(Object key) {
     final ManagedServices managed = managedServices.get(key);
     if (managed == null) {
       throw new IllegalStateException("No services currently exists for key " + key);
@@ -75,66 +296,303 @@ class KeyManager {
   }
 
   void setUp(Object key) {
-    Services parent = managedServices.get(ROOT_KEY).services;
-    if (key instanceof MultiKey) {
-      for (Object part : ((MultiKey) key).getKeys()) {
-        setUp(part);
-      }
-      ensureNode(parent, key).uses++;
-    } else if (key instanceof TreeKey) {
-      TreeKey treeKey = (TreeKey) key;
-      final Object parentKey = treeKey.getParentKey();
-      setUp(parentKey);
-      parent = managedServices.get(parentKey).services;
-      ensureNode(parent, key).uses++;
+    setUp(key, null);
+  }
+
+  synchronized void tearDown(Object key) {
+    tearDown(key, null);
+  }
+
+  /**
+   * Sets up the given key, except for the parts and ancestors it shares with another key that is
+   * set up, which are left alone. Must be balanced by tearing down the key relative to that same
+   * other key, or by tearing down the other key relative to this one. If binding fails, whatever
+   * this set up is torn down again.
+   * <p>
+   * Services are bound without holding the lock, so that the main thread is not held up by a key
+   * being set up for a {@link PreparingDispatcher}. Services still being torn down for any of the
+   * keys are waited for first, also without holding the lock.
+   */
+  void setUp(Object key, @Nullable Object from) {
+    final List<Object> nodes = new ArrayList<>();
+    final List<Integer> deltas = new ArrayList<>();
+    if (isLeaf(key) && isLeaf(from)) {
+      if (key.equals(from)) return;
+      nodes.add(key);
+      deltas.add(1);
     } else {
-      ensureNode(parent, key).uses++;
+      final Map<Object, int[]> held = uses(from);
+      for (Map.Entry<Object, int[]> entry : uses(key).entrySet()) {
+        final int[] heldUses = held.get(entry.getKey());
+        final int delta = entry.getValue()[0] - (heldUses == null ? 0 : heldUses[0]);
+        if (delta > 0) {
+          nodes.add(entry.getKey());
+          deltas.add(delta);
+        }
+      }
+    }
+
+    int setUp = 0;
+    try {
+      // Parents come first, so the parent is already set up.
+      for (; setUp < nodes.size(); setUp++) {
+        setUpNode(nodes.get(setUp), deltas.get(setUp));
+      }
+    } catch (Throwable e) {
+      synchronized (this) {
+        for (int i = setUp - 1; i >= 0; i--) {
+          decrementAndMaybeRemoveKey(nodes.get(i), deltas.get(i));
+        }
+      }
+      throw e;
     }
   }
 
-  void tearDown(Object key) {
-    if (key instanceof MultiKey) {
-      decrementAndMaybeRemoveKey(key);
-      final List<Object> parts = ((MultiKey) key).getKeys();
-      final int count = parts.size();
-      for (int i = count - 1; i >= 0; i--) {
-        tearDown(parts.get(i));
+  /** Adds uses to a node, binding its services if it has none. */
+  private void setUpNode(Object key, int delta) {
+    final Services.Binder binder;
+    final Executor bindExecutor;
+    while (true) {
+      final TearDownStep stolen;
+      synchronized (this) {
+        awaitBinding(key);
+        stolen = awaitTearDowns(key);
+        if (stolen == null && !binding.contains(key)) {
+          final ManagedServices node = takeNode(key);
+          if (node != null) {
+            node.uses += delta;
+            return;
+          }
+          final Object parentKey = key instanceof TreeKey && !(key instanceof MultiKey)
+              ? ((TreeKey) key).getParentKey() : ROOT_KEY;
+          // Bind the local key as a service.
+          binder = managedServices.get(parentKey).services.extend(key, scopeExecutor);
+          bindExecutor = this.bindExecutor;
+          binding.add(key);
+          break;
+        }
+      }
+      if (stolen != null) runTearDown(stolen);
+    }
+
+    ManagedServices node = null;
+    try {
+      bindServices(key, binder, bindExecutor);
+      node = new ManagedServices(binder.build());
+      node.uses = delta;
+    } finally {
+      synchronized (this) {
+        binding.remove(key);
+        if (node != null) managedServices.put(key, node);
+        notifyAll();
       }
-    } else if (key instanceof TreeKey) {
-      decrementAndMaybeRemoveKey(key);
-      TreeKey treeKey = (TreeKey) key;
-      tearDown(treeKey.getParentKey());
-    } else {
-      decrementAndMaybeRemoveKey(key);
     }
   }
 
-  @NonNull private ManagedServices ensureNode(@Nullable Services parent, Object key) {
+  /** The services of the key, taken back from the warm ones if need be, or null. */
+  @Nullable private ManagedServices takeNode(Object key) {
     ManagedServices node = managedServices.get(key);
-    if (node == null) {
-      // Bind the local key as a service.
-      @SuppressWarnings("ConstantConditions") //
-      Services.Binder binder = parent.extend(key);
-      // Add any services from the factories
-      int count = servicesFactories.size();
-      for (int i = 0; i < count; i++) {
-        servicesFactories.get(i).bindServices(binder);
+    if (node == null && !warmServices.isEmpty()) {
+      final long now = System.nanoTime();
+      final WarmServices warm = warmServices.remove(key);
+      // The parent was set up first, so it was taken back too and is still the one extended.
+      if (warm != null) {
+        node = warm.managed;
+        managedServices.put(key, node);
       }
-      node = new ManagedServices(binder.build());
-      managedServices.put(key, node);
+      trimWarmServices(now);
     }
     return node;
   }
 
-  private boolean decrementAndMaybeRemoveKey(Object key) {
+  /**
+   * Tears down the given key, except for the parts and ancestors it shares with another key that
+   * stays set up.
+   */
+  synchronized void tearDown(Object key, @Nullable Object to) {
+    if (isLeaf(key) && isLeaf(to)) {
+      if (!key.equals(to)) decrementAndMaybeRemoveKey(key, 1);
+      return;
+    }
+    final Map<Object, int[]> held = uses(to);
+    final List<Map.Entry<Object, int[]>> entries = new ArrayList<>(uses(key).entrySet());
+    // Children before parents.
+    for (int i = entries.size() - 1; i >= 0; i--) {
+      final Object node = entries.get(i).getKey();
+      final int[] heldUses = held.get(node);
+      final int delta = entries.get(i).getValue()[0] - (heldUses == null ? 0 : heldUses[0]);
+      if (delta > 0) decrementAndMaybeRemoveKey(node, delta);
+    }
+  }
+
+  /** A key that uses nothing but itself, which needs none of the walk in {@link #uses}. */
+  private static boolean isLeaf(@Nullable Object key) {
+    return !(key instanceof TreeKey) && !(key instanceof MultiKey);
+  }
+
+  /**
+   * Counts the uses of each node that setting up the given key takes: the key, each part of a
+   * {@link MultiKey} and each ancestor of a {@link TreeKey}, once per path to it. Parts and parents
+   * come before the keys that use them. Walks iteratively, so deep trees cannot overflow the stack.
+   */
+  private static Map<Object, int[]> uses(@Nullable Object key) {
+    final Map<Object, int[]> uses = new LinkedHashMap<>();
+    if (key == null) return uses;
+    final Deque<Object> stack = new ArrayDeque<>();
+    stack.push(key);
+    while (!stack.isEmpty()) {
+      final Object top = stack.pop();
+      if (top instanceof Visited) {
+        final Object node = ((Visited) top).key;
+        final int[] count = uses.get(node);
+        if (count == null) {
+          uses.put(node, new int[] {1});
+        } else {
+          count[0]++;
+        }
+        continue;
+      }
+      // Counted once everything it uses has been.
+      stack.push(new Visited(top));
+      if (top instanceof MultiKey) {
+        final List<Object> parts = ((MultiKey) top).getKeys();
+        for (int i = parts.size() - 1; i >= 0; i--) {
+          stack.push(parts.get(i));
+        }
+      } else if (top instanceof TreeKey) {
+        stack.push(((TreeKey) top).getParentKey());
+      }
+    }
+    return uses;
+  }
+
+  /**
+   * Binds the services of the factories that serve the key. Called without holding the lock, with
+   * the key marked as {@link #binding}. If one fails, those bound before it are torn down.
+   */
+  private void bindServices(Object key, Services.Binder binder, @Nullable Executor bindExecutor) {
+    // Add any services from the factories that serve this key
+    final List<ServicesFactory> bound = new ArrayList<>();
+    try {
+      if (bindExecutor == null) {
+        for (ServicesFactory factory : servicesFactories.forKey(key)) {
+          factory.bindServices(binder);
+          bound.add(factory);
+        }
+      } else {
+        for (ServicesFactory[] wave : servicesFactories.wavesForKey(key)) {
+          if (wave.length == 1) {
+            wave[0].bindServices(binder);
+            bound.add(wave[0]);
+          } else {
+            bindConcurrently(wave, binder, bound, bindExecutor);
+          }
+        }
+      }
+    } catch (Throwable e) {
+      tearDownPartly(binder, bound);
+      throw e;
+    }
+  }
+
+  /**
+   * Binds each factory to its own fork of the binder, then merges them in order. The calling
+   * thread binds factories too, so this completes even if the executor never gets to run.
+   * Factories that bound successfully are added to the given list, even if another failed.
+   */
+  private void bindConcurrently(final ServicesFactory[] wave, Services.Binder binder,
+      List<ServicesFactory> bound, Executor executor) {
+    final Services.Binder[] forks = new Services.Binder[wave.length];
+    for (int i = 0; i < wave.length; i++) {
+      forks[i] = binder.fork();
+    }
+    final boolean[] succeeded = new boolean[wave.length];
+    final AtomicInteger next = new AtomicInteger();
+    final AtomicInteger done = new AtomicInteger();
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    final Runnable worker = new Runnable() {
+      @Override public void run() {
+        int i;
+        while ((i = next.getAndIncrement()) < wave.length) {
+          try {
+            wave[i].bindServices(forks[i]);
+            succeeded[i] = true;
+          } catch (Throwable e) {
+            // Errors too, which would otherwise be lost with the executor's thread.
+            failure.compareAndSet(null, e);
+          } finally {
+            synchronized (KeyManager.this) {
+              done.incrementAndGet();
+              KeyManager.this.notifyAll();
+            }
+          }
+        }
+      }
+    };
+    for (int i = 1; i < wave.length; i++) {
+      executor.execute(worker);
+    }
+    worker.run();
+
+    synchronized (this) {
+      boolean interrupted = false;
+      while (done.get() < wave.length) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    // The lock was taken to see the last count, so every fork is visible here.
+    for (int i = 0; i < wave.length; i++) {
+      if (succeeded[i]) {
+        binder.merge(forks[i]);
+        bound.add(wave[i]);
+      }
+    }
+    final Throwable thrown = failure.get();
+    if (thrown instanceof Error) throw (Error) thrown;
+    if (thrown != null) throw (RuntimeException) thrown;
+  }
+
+  /** Waits, releasing the lock, while another thread binds services for the key. */
+  private void awaitBinding(Object key) {
+    boolean interrupted = false;
+    while (binding.contains(key)) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) Thread.currentThread().interrupt();
+  }
+
+  /** Tears down what the given factories bound for a key whose binding failed part way. */
+  private static void tearDownPartly(Services.Binder binder, List<ServicesFactory> bound) {
+    final Services services = binder.build();
+    services.getScope().cancel();
+    for (int i = bound.size() - 1; i >= 0; i--) {
+      bound.get(i).tearDownServices(services);
+    }
+    services.tearDownLazyServices();
+  }
+
+  private boolean decrementAndMaybeRemoveKey(Object key, int count) {
     ManagedServices node = managedServices.get(key);
-    node.uses--;
+    node.uses -= count;
     if (key != ROOT_KEY && node.uses == 0) {
-      int count = servicesFactories.size();
-      for (int i = count - 1; i >= 0; i--) {
-        servicesFactories.get(i).tearDownServices(node.services);
-      }
       managedServices.remove(key);
+      if (maxWarmServices > 0) {
+        final long now = System.nanoTime();
+        warmServices.put(key, new WarmServices(node, now));
+        trimWarmServices(now);
+      } else {
+        tearDownServices(node);
+      }
       return true;
     }
     if (node.uses < 0) {
@@ -143,6 +601,213 @@ class KeyManager {
     return false;
   }
 
+  private void tearDownServices(ManagedServices node) {
+    final Services services = node.services;
+    services.getScope().cancel();
+    final Object key = services.getKey();
+    final ServicesFactory[] factories = servicesFactories.forKey(key);
+    if (tearDowns.isEmpty() && !anyTearDownAsync(factories)) {
+      for (int i = factories.length - 1; i >= 0; i--) {
+        factories[i].tearDownServices(services);
+      }
+      services.tearDownLazyServices();
+      return;
+    }
+
+    // Runs of factories that share a thread, still in reverse order.
+    int i = factories.length - 1;
+    while (i >= 0) {
+      final boolean async = isTearDownAsync(factories[i]);
+      final int last = i;
+      while (i >= 0 && isTearDownAsync(factories[i]) == async) {
+        i--;
+      }
+      final int first = i + 1;
+      tearDowns.add(new TearDownStep(key, async, new Runnable() {
+        @Override public void run() {
+          for (int j = last; j >= first; j--) {
+            factories[j].tearDownServices(services);
+          }
+        }
+      }));
+    }
+    tearDowns.add(new TearDownStep(key, false, new Runnable() {
+      @Override public void run() {
+        services.tearDownLazyServices();
+      }
+    }));
+    runTearDowns(false);
+  }
+
+  private boolean isTearDownAsync(ServicesFactory factory) {
+    return tearDownExecutor != null && factory.isTearDownAsync();
+  }
+
+  private boolean anyTearDownAsync(ServicesFactory[] factories) {
+    for (ServicesFactory factory : factories) {
+      if (isTearDownAsync(factory)) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Runs the teardowns that are due, up to the first one that has to wait for another thread: an
+   * async one is handed to the executor, and others are posted to the main executor unless this
+   * is the main executor or the thread that released their key.
+   */
+  private void runTearDowns(boolean onMainExecutor) {
+    TearDownStep head;
+    while ((head = tearDowns.peek()) != null && !head.started) {
+      if (head.async) {
+        if (!head.dispatched) {
+          head.dispatched = true;
+          final TearDownStep step = head;
+          //noinspection ConstantConditions
+          tearDownExecutor.execute(new Runnable() {
+            @Override public void run() {
+              runTearDown(step);
+            }
+          });
+        }
+        return;
+      }
+      if (!onMainExecutor && head.owner != Thread.currentThread()) {
+        //noinspection ConstantConditions
+        mainExecutor.execute(continueTearDowns);
+        return;
+      }
+      head.started = true;
+      try {
+        head.work.run();
+      } finally {
+        finishTearDown(head);
+      }
+    }
+  }
+
+  /**
+   * Runs an async teardown without holding the lock, unless another thread got to it first, then
+   * moves on to the next one.
+   */
+  private void runTearDown(TearDownStep step) {
+    synchronized (this) {
+      if (step.started) return;
+      step.started = true;
+    }
+    try {
+      step.work.run();
+    } finally {
+      synchronized (this) {
+        finishTearDown(step);
+        runTearDowns(false);
+      }
+    }
+  }
+
+  private void finishTearDown(TearDownStep step) {
+    tearDowns.remove(step);
+    notifyAll();
+  }
+
+  /**
+   * Makes sure the services previously bound for the key and what it uses are torn down before
+   * binding new ones. Runs those due on this thread, and waits, releasing the lock, while others
+   * run them. Returns an async teardown in the way that the executor has not started yet, for the
+   * caller to run outside the lock, or null once there is nothing left to wait for.
+   */
+  @Nullable private TearDownStep awaitTearDowns(Object key) {
+    if (tearDowns.isEmpty()) return null;
+    final Set<Object> nodes =
+        isLeaf(key) ? Collections.singleton(key) : uses(key).keySet();
+    boolean interrupted = false;
+    try {
+      while (isTearingDown(nodes)) {
+        runTearDowns(false);
+        if (!isTearingDown(nodes)) break;
+        final TearDownStep head = tearDowns.peek();
+        if (head.async && !head.started) return head;
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      return null;
+    } finally {
+      if (interrupted) Thread.currentThread().interrupt();
+    }
+  }
+
+  private boolean isTearingDown(Set<Object> keys) {
+    for (TearDownStep step : tearDowns) {
+      if (keys.contains(step.key)) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Tears down warm services past their time, or beyond the limit. Children are always released
+   * before their parents, so evicting the eldest first never leaves a warm child whose parent
+   * services were torn down.
+   */
+  private void trimWarmServices(long now) {
+    final Iterator<WarmServices> eldest = warmServices.values().iterator();
+    while (eldest.hasNext()) {
+      final WarmServices warm = eldest.next();
+      if (warmServices.size() <= maxWarmServices
+          && now - warm.releasedNanos < warmServicesTtlNanos) {
+        break;
+      }
+      tearDownServices(warm.managed);
+      eldest.remove();
+    }
+  }
+
+  private static final class Visited {
+    final Object key;
+
+    Visited(Object key) {
+      this.key = key;
+    }
+  }
+
+  private static final class TearDownStep {
+    final Object key;
+    final boolean async;
+    final Runnable work;
+    /** The thread that released the key, which runs the step unless it is async. */
+    final Thread owner = Thread.currentThread();
+    boolean dispatched;
+    boolean started;
+
+    TearDownStep(Object key, boolean async, Runnable work) {
+      this.key = key;
+      this.async = async;
+      this.work = work;
+    }
+  }
+
+  private static final class WarmServices {
+    final ManagedServices managed;
+    final long releasedNanos;
+
+    WarmServices(ManagedServices managed, long releasedNanos) {
+      this.managed = managed;
+      this.releasedNanos = releasedNanos;
+    }
+  }
+
+  private static final class RetainedState {
+    final State state;
+    /** Estimated when the state was retained, so that the total stays consistent. */
+    final int bytes;
+
+    RetainedState(State state) {
+      this.state = state;
+      this.bytes = state.estimateBytes();
+    }
+  }
+
   private static final class ManagedServices {
     final Services services;
     /** Includes uses as a leaf and as a direct parent. */
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow;
+
+/**
+ * What {@link Flow} gives up when a traversal is requested while its queue is at capacity. See
+ * {@link Flow#setQueueCapacity}.
+ */
+public enum OverflowPolicy {
+  /** Drop the oldest traversal that has not yet been executed. */
+  DROP_OLDEST,
+
+  /** Drop the traversal being requested. */
+  DROP_NEWEST,
+
+  /**
+   * Fold the queued traversals into one to their net history, as {@link Flow#setCoalescing} does.
+   * If nothing can be folded, the traversal being requested is dropped.
+   */
+  COALESCE
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.WorkerThread;
+
+/**
+ * A {@link Dispatcher} that splits its work in two phases. If an executor has been given to
+ * {@link Flow#setPrepareExecutor}, Flow binds the services of the destination's top key and calls
+ * {@link #prepare} on that executor, then calls {@link #dispatch} on the main thread to commit the
+ * change. Without an executor, preparing dispatchers are treated like any other.
+ * <p>
+ * If another traversal is requested while this one is being prepared, the preparation is
+ * {@link Traversal#isCancelled() cancelled} and Flow folds both traversals into one, which is
+ * prepared from scratch.
+ */
+public interface PreparingDispatcher extends Dispatcher {
+  /**
+   * Does whatever can be done ahead of {@link #dispatch} without touching the view hierarchy, for
+   * instance reading state or inflating views that are not yet attached. Implementations should
+   * check {@link Traversal#isCancelled()} between expensive steps and return early once it is
+   * set. Anything prepared must be kept by the dispatcher itself until dispatch.
+   */
+  @WorkerThread void prepare(@NonNull Traversal traversal);
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import static flow.Preconditions.checkNotNull;
+
+/**
+ * The lifetime of a key's {@link Services}. A scope is cancelled when its services are torn down,
+ * right before {@link ServicesFactory#tearDownServices} is called, and the scope of a {@link
+ * TreeKey} is cancelled along with its parent's. Use it to stop background work that is only
+ * needed while the key is set up.
+ */
+public final class Scope {
+  public interface OnCancelListener {
+    /** Called once, on the thread that cancelled the scope. */
+    void onCancel();
+  }
+
+  @Nullable private final Scope parent;
+  @Nullable private final Executor backgroundExecutor;
+  private final OnCancelListener cancelWithParent = new OnCancelListener() {
+    @Override public void onCancel() {
+      cancel();
+    }
+  };
+  private final List<OnCancelListener> listeners = new ArrayList<>();
+  private final Set<FutureTask<?>> running = new LinkedHashSet<>();
+  private final List<Services.Sizer> sizers = new ArrayList<>();
+  @Nullable private Executor executor;
+  private volatile boolean cancelled;
+
+  Scope(@Nullable Scope parent, @Nullable Executor backgroundExecutor) {
+    this.parent = parent;
+    this.backgroundExecutor = backgroundExecutor;
+    if (parent != null) parent.addOnCancelListener(cancelWithParent);
+  }
+
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  /** Calls the listener when this scope is cancelled, or right away if it already was. */
+  public void addOnCancelListener(@NonNull OnCancelListener listener) {
+    checkNotNull(listener, "listener");
+    synchronized (this) {
+      if (!cancelled) {
+        listeners.add(listener);
+        return;
+      }
+    }
+    listener.onCancel();
+  }
+
+  public synchronized void removeOnCancelListener(@NonNull OnCancelListener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Runs commands in the background for as long as this scope lasts. Once the scope is cancelled,
+   * commands that have not started are dropped, running ones are interrupted, and new ones are
+   * ignored. What a command throws is rethrown on the background thread, as if it ran there
+   * directly.
+   */
+  @NonNull public synchronized Executor getExecutor() {
+    if (executor == null) {
+      final Executor background = checkNotNull(backgroundExecutor, "No background executor");
+      executor = new Executor() {
+        @Override public void execute(@NonNull Runnable command) {
+          final FutureTask<Void> task = new FutureTask<Void>(command, null) {
+            @Override protected void done() {
+              synchronized (Scope.this) {
+                running.remove(this);
+              }
+              if (isCancelled()) return;
+              try {
+                get();
+              } catch (InterruptedException e) {
+                // Already done, so this does not wait.
+                Thread.currentThread().interrupt();
+              } catch (ExecutionException e) {
+                final Throwable cause = e.getCause();
+                if (cause instanceof Error) throw (Error) cause;
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                throw new RuntimeException(cause);
+              }
+            }
+          };
+          synchronized (Scope.this) {
+            if (cancelled) return;
+            running.add(task);
+          }
+          background.execute(task);
+        }
+      };
+    }
+    return executor;
+  }
+
+  /** Sums what the {@link Services.Binder#addSizer sizers} of this scope report, in bytes. */
+  public long estimateBytes() {
+    final List<Services.Sizer> sizers;
+    synchronized (this) {
+      if (cancelled) return 0;
+      sizers = new ArrayList<>(this.sizers);
+    }
+    long bytes = 0;
+    for (Services.Sizer sizer : sizers) {
+      bytes += sizer.estimateBytes();
+    }
+    return bytes;
+  }
+
+  synchronized void addSizer(Services.Sizer sizer) {
+    sizers.add(sizer);
+  }
+
+  /** Asks each sizer to give memory back, at the given trim level. */
+  void trimMemory(int level) {
+    final List<Services.Sizer> sizers;
+    synchronized (this) {
+      if (cancelled) return;
+      sizers = new ArrayList<>(this.sizers);
+    }
+    for (Services.Sizer sizer : sizers) {
+      sizer.onTrimMemory(level);
+    }
+  }
+
+  void cancel() {
+    final List<OnCancelListener> toNotify;
+    final List<FutureTask<?>> toCancel;
+    synchronized (this) {
+      if (cancelled) return;
+      cancelled = true;
+      toNotify = new ArrayList<>(listeners);
+      listeners.clear();
+      toCancel = new ArrayList<>(running);
+      running.clear();
+      sizers.clear();
+    }
+    if (parent != null) parent.removeOnCancelListener(cancelWithParent);
+    for (FutureTask<?> task : toCancel) {
+      task.cancel(true);
+    }
+    for (OnCancelListener listener : toNotify) {
+      listener.onCancel();
+    }
+  }
+}
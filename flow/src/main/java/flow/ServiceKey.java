@@ -0,0 +1,78 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow;
+
+import android.support.annotation.NonNull;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import static flow.Preconditions.checkNotNull;
+
+/**
+ * Names a service and the type it is bound as. Keys are interned by name, and each is given an id
+ * that {@link Services} hashes its services by, so that a service is found in constant time
+ * instead of by a search through every enclosing scope. Binding and looking up by key or by its
+ * name are equivalent.
+ *
+ * <pre><code>
+ * public static final ServiceKey&lt;ContactsStorage&gt; CONTACTS_STORAGE =
+ *     ServiceKey.of("CONTACTS_STORAGE");
+ * </code></pre>
+ */
+public final class ServiceKey<T> {
+  /**
+   * Interned weakly, so that keys made up for services that are no longer bound anywhere can be
+   * collected. Services hold on to the keys they bind, which keeps them interned meanwhile.
+   */
+  private static final Map<String, WeakReference<ServiceKey<?>>> KEYS = new WeakHashMap<>();
+  private static int nextId;
+
+  /** Returns the key with the given name. Calls with the same name return the same key. */
+  @NonNull public static <T> ServiceKey<T> of(@NonNull String name) {
+    checkNotNull(name, "name");
+    synchronized (KEYS) {
+      final WeakReference<ServiceKey<?>> ref = KEYS.get(name);
+      @SuppressWarnings("unchecked") //
+      ServiceKey<T> key = ref == null ? null : (ServiceKey<T>) ref.get();
+      if (key == null) {
+        // Replaces the entry, rather than just its value, so that its key is this very name and
+        // the entry lives as long as the new key.
+        KEYS.remove(name);
+        key = new ServiceKey<>(name, nextId++);
+        KEYS.put(name, new WeakReference<ServiceKey<?>>(key));
+      }
+      return key;
+    }
+  }
+
+  final String name;
+  final int id;
+
+  private ServiceKey(String name, int id) {
+    this.name = name;
+    this.id = id;
+  }
+
+  @NonNull public String getName() {
+    return name;
+  }
+
+  @Override public String toString() {
+    return name;
+  }
+}
@@ -18,62 +18,301 @@ package flow;
 
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
 
 import static flow.Preconditions.checkNotNull;
 
 public class Services {
-  static final Services ROOT_SERVICES =
-      new Services(Flow.ROOT_KEY, null, Collections.<String, Object>emptyMap());
+  static final Services ROOT_SERVICES = new Services(Flow.ROOT_KEY, new ServiceKey<?>[0],
+      new Object[0], Collections.<LazyService<?>>emptyList(), new Scope(null, null));
+  private static final boolean BY_ID = false;
+  private static final boolean BY_NAME = true;
+
+  /**
+   * Creates a service the first time it is looked up. See {@link Binder#bindLazy}.
+   */
+  public abstract static class Provider<T> {
+    /**
+     * Creates the service. Called at most once, on whichever thread first looks it up. The given
+     * Services are the ones the service was bound to, and can be used to find its dependencies.
+     */
+    @NonNull protected abstract T create(@NonNull Services services);
+
+    /**
+     * Releases a service that was created by {@link #create}. Called when its key is torn down,
+     * after {@link ServicesFactory#tearDownServices}, and not at all if it was never created.
+     */
+    protected void tearDown(@NonNull T service) {
+    }
+  }
+
+  /**
+   * Accounts for memory that services of a key hold on to, typically in caches, so that Flow can
+   * keep the keys that are not in view within a {@link Installer#memoryBudget budget}.
+   */
+  public abstract static class Sizer {
+    /** Roughly how many bytes are held. Called on the main thread, so keep it cheap. */
+    public abstract long estimateBytes();
+
+    /**
+     * Gives back what memory can be recreated later, like caches. Only called while the key is
+     * out of view. The level is one of the {@link android.content.ComponentCallbacks2} {@code
+     * TRIM_MEMORY_} constants; {@code TRIM_MEMORY_UI_HIDDEN} only means the app was backgrounded,
+     * which sizers may choose to ignore.
+     */
+    public void onTrimMemory(int level) {
+    }
+  }
 
   public static final class Binder extends Services {
-    private final Map<String, Object> services = new LinkedHashMap<>();
+    private final Map<ServiceKey<?>, Object> services = new LinkedHashMap<>();
+    /** The keys of {@link #services}, so that they are also found by name while binding. */
+    private final Map<String, ServiceKey<?>> names = new HashMap<>();
     private final Services base;
+    /** For a fork, the binder it will be merged into, whose services it can already see. */
+    @Nullable private final Binder forkedFrom;
 
-    private Binder(Services base, Object key) {
-      super(key, base, Collections.<String, Object>emptyMap());
-      checkNotNull(base, "only root Services should have a null base");
+    private Binder(Services base, Object key, @Nullable Binder forkedFrom, Scope scope) {
+      super(key, checkNotNull(base, "only root Services should have a null base").keys,
+          base.values, base.byId, base.byName, Collections.<LazyService<?>>emptyList(), scope);
       this.base = base;
+      this.forkedFrom = forkedFrom;
+    }
+
+    /** Finds services of the base, and ones that were already bound to this binder. */
+    @Nullable @Override public <T> T getService(@NonNull ServiceKey<T> key) {
+      Object service = services.get(key);
+      if (service == null && forkedFrom != null) service = forkedFrom.services.get(key);
+      if (service == null) return super.getService(key);
+      if (service instanceof LazyService) service = ((LazyService<?>) service).get(this);
+      @SuppressWarnings("unchecked") //
+      final T typed = (T) service;
+      return typed;
+    }
+
+    /** Like {@link #getService(ServiceKey)}, by the name of the key. */
+    @Nullable @Override public <T> T getService(@NonNull String name) {
+      ServiceKey<?> key = names.get(name);
+      if (key == null && forkedFrom != null) key = forkedFrom.names.get(name);
+      if (key == null) return super.getService(name);
+      @SuppressWarnings("unchecked") //
+      final T service = (T) getService(key);
+      return service;
     }
 
     @NonNull public Binder bind(@NonNull String serviceName, @NonNull Object service) {
-      services.put(serviceName, service);
+      return bind(ServiceKey.of(serviceName), service);
+    }
+
+    @NonNull public <T> Binder bind(@NonNull ServiceKey<T> key, @NonNull T service) {
+      services.put(checkNotNull(key, "key"), checkNotNull(service, "service"));
+      names.put(key.name, key);
+      return this;
+    }
+
+    /**
+     * Binds a service that is only created when it is first looked up with {@link #getService}.
+     * Note that looking it up from {@link ServicesFactory#tearDownServices} will create it; release
+     * it from {@link Provider#tearDown} instead.
+     */
+    @NonNull
+    public Binder bindLazy(@NonNull String serviceName, @NonNull Provider<?> provider) {
+      return bindLazy(ServiceKey.of(serviceName), provider);
+    }
+
+    /** Like {@link #bindLazy(String, Provider)}, with a typed key. */
+    @NonNull
+    public <T> Binder bindLazy(@NonNull ServiceKey<T> key,
+        @NonNull Provider<? extends T> provider) {
+      services.put(checkNotNull(key, "key"),
+          new LazyService<>(checkNotNull(provider, "provider")));
+      names.put(key.name, key);
       return this;
     }
 
+    /** Counts the memory held by services bound here, and lets it be trimmed under pressure. */
+    @NonNull public Binder addSizer(@NonNull Sizer sizer) {
+      getScope().addSizer(checkNotNull(sizer, "sizer"));
+      return this;
+    }
+
+    /**
+     * Returns a binder for the same key that sees what was bound here so far, for a factory that
+     * binds concurrently with others. Its services are added here by {@link #merge}.
+     */
+    @NonNull Binder fork() {
+      return new Binder(base, getKey(), this, getScope());
+    }
+
+    void merge(Binder fork) {
+      services.putAll(fork.services);
+      names.putAll(fork.names);
+    }
+
+    /**
+     * Flattens the base's services and the ones bound here into arrays that are hashed by {@link
+     * ServiceKey#id} and by name, so that lookups take constant time however deeply scopes are
+     * nested. They are only as long as the number of services visible here.
+     */
     @NonNull Services build() {
-      return new Services(getKey(), base, services);
+      final ServiceKey<?>[] keys = Arrays.copyOf(base.keys, base.keys.length + services.size());
+      final Object[] values = Arrays.copyOf(base.values, keys.length);
+      int size = base.keys.length;
+      for (Map.Entry<ServiceKey<?>, Object> entry : services.entrySet()) {
+        // Bound here, and hides any service of an enclosing scope with the same key.
+        int index = base.indexOf(entry.getKey());
+        if (index < 0) index = size++;
+        keys[index] = entry.getKey();
+        values[index] = entry.getValue();
+      }
+
+      final List<LazyService<?>> lazyServices = new ArrayList<>();
+      for (Object service : services.values()) {
+        if (service instanceof LazyService) lazyServices.add((LazyService<?>) service);
+      }
+      final Services built = new Services(getKey(), Arrays.copyOf(keys, size),
+          Arrays.copyOf(values, size), lazyServices, getScope());
+      for (LazyService<?> lazy : lazyServices) {
+        lazy.owner = built;
+      }
+      return built;
     }
   }
 
   private final Object key;
-  @Nullable private final Services delegate;
-  private final Map<String, Object> localServices = new LinkedHashMap<>();
+  /** The key of every service visible from this scope, including enclosing ones. */
+  private final ServiceKey<?>[] keys;
+  /** The services of the {@link #keys} at the same index. */
+  private final Object[] values;
+  /** Open-addressed tables of one more than the index of each key, hashed by its id or name. */
+  private final int[] byId;
+  private final int[] byName;
+  /** The lazy services bound to this scope itself, in the order they were bound. */
+  private final List<LazyService<?>> lazyServices;
+  private final Scope scope;
 
-  private Services(Object key, @Nullable Services delegate, Map<String, Object> localServices) {
-    this.delegate = delegate;
+  private Services(Object key, ServiceKey<?>[] keys, Object[] values,
+      List<LazyService<?>> lazyServices, Scope scope) {
+    this(key, keys, values, hash(keys, BY_ID), hash(keys, BY_NAME), lazyServices, scope);
+  }
+
+  private Services(Object key, ServiceKey<?>[] keys, Object[] values, int[] byId, int[] byName,
+      List<LazyService<?>> lazyServices, Scope scope) {
     this.key = key;
-    this.localServices.putAll(localServices);
+    this.keys = keys;
+    this.values = values;
+    this.byId = byId;
+    this.byName = byName;
+    this.lazyServices = lazyServices;
+    this.scope = scope;
   }
 
   @Nullable public <T> T getService(@NonNull String name) {
-    if (localServices.containsKey(name)) {
-      @SuppressWarnings("unchecked") //
-      final T service = (T) localServices.get(name);
-      return service;
+    final int mask = byName.length - 1;
+    for (int slot = spread(name.hashCode()) & mask; byName[slot] != 0; slot = (slot + 1) & mask) {
+      final int index = byName[slot] - 1;
+      if (keys[index].name.equals(name)) return serviceAt(index);
     }
-    if (delegate != null) return delegate.getService(name);
     return null;
   }
 
+  @Nullable public <T> T getService(@NonNull ServiceKey<T> key) {
+    final int index = indexOf(key);
+    return index < 0 ? null : this.<T>serviceAt(index);
+  }
+
+  private int indexOf(ServiceKey<?> key) {
+    final int mask = byId.length - 1;
+    for (int slot = spread(key.id) & mask; byId[slot] != 0; slot = (slot + 1) & mask) {
+      final int index = byId[slot] - 1;
+      if (keys[index] == key) return index;
+    }
+    return -1;
+  }
+
+  private <T> T serviceAt(int index) {
+    Object service = values[index];
+    if (service instanceof LazyService) service = ((LazyService<?>) service).get(this);
+    @SuppressWarnings("unchecked") //
+    final T typed = (T) service;
+    return typed;
+  }
+
+  /** Builds a table at most half full, so that a probe soon reaches an empty slot. */
+  private static int[] hash(ServiceKey<?>[] keys, boolean byName) {
+    final int[] table = new int[Integer.highestOneBit(Math.max(1, keys.length)) * 4];
+    final int mask = table.length - 1;
+    for (int i = 0; i < keys.length; i++) {
+      int slot = spread(byName ? keys[i].name.hashCode() : keys[i].id) & mask;
+      while (table[slot] != 0) slot = (slot + 1) & mask;
+      table[slot] = i + 1;
+    }
+    return table;
+  }
+
+  /** Spreads ids that were handed out in sequence, and similar hashes, over the table. */
+  private static int spread(int hash) {
+    final int h = hash * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
   @NonNull public <T> T getKey() {
     //noinspection unchecked
     return (T) this.key;
   }
 
-  @NonNull Binder extend(@NonNull Object key) {
-    return new Binder(this, key);
+  /** The lifetime of these services, which is already available while they are being bound. */
+  @NonNull public Scope getScope() {
+    return scope;
+  }
+
+  /**
+   * Starts binding services for a key nested in these. The new scope is cancelled with this one,
+   * unless this is the root, which never is.
+   */
+  @NonNull Binder extend(@NonNull Object key, @Nullable Executor backgroundExecutor) {
+    final Scope parentScope = this == ROOT_SERVICES ? null : scope;
+    return new Binder(this, key, null, new Scope(parentScope, backgroundExecutor));
+  }
+
+  /** Tears down the lazy services that were created, in the reverse order of their binding. */
+  void tearDownLazyServices() {
+    for (int i = lazyServices.size() - 1; i >= 0; i--) {
+      lazyServices.get(i).tearDown();
+    }
+  }
+
+  private static final class LazyService<T> {
+    private final Provider<T> provider;
+    /** The scope the service was bound to, which may be enclosing the one it is looked up from. */
+    Services owner;
+    @Nullable private T instance;
+
+    LazyService(Provider<T> provider) {
+      this.provider = provider;
+    }
+
+    /** The given scope is only used if the service is looked up before its own is built. */
+    synchronized T get(Services from) {
+      if (instance == null) {
+        instance = checkNotNull(provider.create(owner != null ? owner : from),
+            "provider created null");
+      }
+      return instance;
+    }
+
+    synchronized void tearDown() {
+      if (instance != null) {
+        provider.tearDown(instance);
+        instance = null;
+      }
+    }
   }
 }
@@ -17,18 +17,76 @@
 package flow;
 
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import java.util.Collection;
 
 public abstract class ServicesFactory {
+  private final Class<?>[] keyTypes;
+
+  /** Creates a factory that is called for every key. */
+  public ServicesFactory() {
+    this(new Class<?>[0]);
+  }
+
+  /**
+   * @param keyTypes the classes or interfaces of the keys this factory binds services for. Keys
+   * that are not an instance of any of them are never given to this factory. Give none to be
+   * called for every key.
+   */
+  protected ServicesFactory(@NonNull Class<?>... keyTypes) {
+    this.keyTypes = keyTypes.clone();
+  }
+
+  boolean serves(Class<?> keyClass) {
+    if (keyTypes.length == 0) return true;
+    for (Class<?> keyType : keyTypes) {
+      if (keyType.isAssignableFrom(keyClass)) return true;
+    }
+    return false;
+  }
+
   /**
    * Sets up any services associated with the key, and make them accessible via the context.
-   * Typically this means returning a new context that wraps the given one.
+   * Typically this means returning a new context that wraps the given one. Services bound for the
+   * key by factories added earlier can be looked up from the binder.
+   * <p>
+   * When the dispatcher is a {@link PreparingDispatcher}, this may be called off the main thread.
    */
   public abstract void bindServices(@NonNull Services.Binder services);
 
+  /**
+   * Names of the services this factory binds, or null if not declared. Factories that declare
+   * both what they produce and what they {@link #getConsumedServices consume} may be bound
+   * concurrently with others they do not depend on, if the Installer was given an executor to bind
+   * services on. Undeclared factories are always bound by themselves, in order.
+   */
+  @Nullable public Collection<String> getProducedServices() {
+    return null;
+  }
+
+  /**
+   * Names of the services this factory looks up from {@link #bindServices}, or null if not
+   * declared. A factory is bound after any earlier factory that produces what it consumes.
+   */
+  @Nullable public Collection<String> getConsumedServices() {
+    return null;
+  }
+
   /**
    * Tears down any services previously bound by {@link #bindServices}. Note that the Services
    * instance given here may be a wrapper around an instance that this factory created.
    */
   public void tearDownServices(@NonNull Services services) {
   }
+
+  /**
+   * Whether {@link #tearDownServices} may run off the main thread, on the executor the Installer
+   * was given to tear services down on. Factories are still torn down in reverse order, and
+   * children before their parents: those torn down after this one on the main thread wait until it
+   * is done. A key that is set up again waits until its previous services are torn down. False by
+   * default.
+   */
+  public boolean isTearDownAsync() {
+    return false;
+  }
 }
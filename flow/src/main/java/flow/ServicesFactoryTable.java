@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the {@link ServicesFactory factories} that serve each class of key, based on the key types
+ * they were created with. The result for each class is computed once and cached, so setting up a
+ * key only visits the factories that match it. Not thread safe; guarded by the {@link KeyManager}.
+ */
+final class ServicesFactoryTable {
+  private static final ServicesFactory[] NONE = new ServicesFactory[0];
+
+  private final ServicesFactory[] factories;
+  private final Map<Class<?>, ServicesFactory[]> byKeyClass = new HashMap<>();
+  private final Map<Class<?>, List<ServicesFactory[]>> wavesByKeyClass = new HashMap<>();
+
+  ServicesFactoryTable(List<ServicesFactory> factories) {
+    this.factories = factories.toArray(new ServicesFactory[factories.size()]);
+  }
+
+  /** The factories serving the given key, in the order they were added. */
+  ServicesFactory[] forKey(Object key) {
+    final Class<?> keyClass = key.getClass();
+    ServicesFactory[] matching = byKeyClass.get(keyClass);
+    if (matching == null) {
+      final List<ServicesFactory> list = new ArrayList<>();
+      for (ServicesFactory factory : factories) {
+        if (factory.serves(keyClass)) list.add(factory);
+      }
+      matching = list.isEmpty() ? NONE : list.toArray(new ServicesFactory[list.size()]);
+      byKeyClass.put(keyClass, matching);
+    }
+    return matching;
+  }
+
+  /**
+   * The factories serving the given key, grouped into waves that can each be bound concurrently,
+   * in the order the waves must run. A factory comes after any earlier one producing a service it
+   * consumes, after any earlier one producing the same service, and no earlier than any earlier
+   * one consuming a service it produces. A factory that does not declare its services forms a wave
+   * of its own, with every other factory before or after it. Within a wave, factories keep the
+   * order they were added in.
+   */
+  List<ServicesFactory[]> wavesForKey(Object key) {
+    final Class<?> keyClass = key.getClass();
+    List<ServicesFactory[]> waves = wavesByKeyClass.get(keyClass);
+    if (waves == null) {
+      waves = computeWaves(forKey(key));
+      wavesByKeyClass.put(keyClass, waves);
+    }
+    return waves;
+  }
+
+  private static List<ServicesFactory[]> computeWaves(ServicesFactory[] factories) {
+    final int[] waveOf = new int[factories.length];
+    final Map<String, Integer> producedIn = new HashMap<>();
+    final Map<String, Integer> consumedIn = new HashMap<>();
+    int barrier = 0;
+    int waveCount = 0;
+    for (int i = 0; i < factories.length; i++) {
+      final Collection<String> produced = factories[i].getProducedServices();
+      final Collection<String> consumed = factories[i].getConsumedServices();
+      int wave = barrier;
+      if (produced == null || consumed == null) {
+        wave = waveCount;
+        barrier = wave + 1;
+      } else {
+        for (String name : consumed) {
+          final Integer producer = producedIn.get(name);
+          if (producer != null) wave = Math.max(wave, producer + 1);
+        }
+        for (String name : produced) {
+          final Integer producer = producedIn.get(name);
+          if (producer != null) wave = Math.max(wave, producer + 1);
+          final Integer consumer = consumedIn.get(name);
+          if (consumer != null) wave = Math.max(wave, consumer);
+        }
+        for (String name : produced) {
+          producedIn.put(name, wave);
+        }
+        for (String name : consumed) {
+          final Integer consumer = consumedIn.get(name);
+          consumedIn.put(name, consumer == null ? wave : Math.max(consumer, wave));
+        }
+      }
+      waveOf[i] = wave;
+      waveCount = Math.max(waveCount, wave + 1);
+    }
+
+    final List<ServicesFactory[]> waves = new ArrayList<>(waveCount);
+    for (int wave = 0; wave < waveCount; wave++) {
+      final List<ServicesFactory> members = new ArrayList<>();
+      for (int i = 0; i < factories.length; i++) {
+        if (waveOf[i] == wave) members.add(factories[i]);
+      }
+      waves.add(members.toArray(new ServicesFactory[members.size()]));
+    }
+    return waves;
+  }
+}
@@ -17,13 +17,17 @@
 package flow;
 
 import android.os.Bundle;
+import android.os.Parcel;
 import android.os.Parcelable;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.SparseArray;
 import android.view.View;
+import java.io.IOException;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.zip.CRC32;
 
 import static flow.Preconditions.checkNotNull;
 
@@ -32,6 +36,14 @@ public class State {
   private static final String BUNDLE = "BUNDLE";
   private static final String VIEW_STATE_PREFIX = "VIEW_STATE_";
   private static final String KEY = "KEY";
+  private static final String LAYOUT = "LAYOUT";
+  private static final String VIEW_STATES = "VIEW_STATES";
+  /** One key per view, and an array of their ids. Read for bundles saved without a layout. */
+  private static final int PER_VIEW_LAYOUT = 1;
+  /** All view states {@link #pack packed} into a single byte array. */
+  private static final int PACKED_LAYOUT = 2;
+  private static final String SPILLED_INDEX = "SPILLED_INDEX";
+  private static final String SPILLED_CHECKSUM = "SPILLED_CHECKSUM";
 
   /** Creates a State instance that has no state and is effectively immutable. */
   @NonNull public static State empty(@NonNull final Object key) {
@@ -39,23 +51,88 @@ public class State {
   }
 
   @NonNull static State fromBundle(@NonNull Bundle savedState, @NonNull KeyParceler parceler) {
+    return fromBundle(savedState, parceler, null, null);
+  }
+
+  /**
+   * @param segment the token of the {@link StateStore} segment that frames {@link
+   * #toBundle(KeyParceler, List, int) spilled} by the same save went to. Their contents are only
+   * read from the store once needed.
+   */
+  @NonNull static State fromBundle(@NonNull Bundle savedState, @NonNull KeyParceler parceler,
+      @Nullable StateStore store, @Nullable String segment) {
     Object key = parceler.toKey(savedState.getParcelable(KEY));
     State state = new State(key);
-    int[] viewIds = checkNotNull(savedState.getIntArray(VIEW_STATE_IDS), "Null view state ids?");
-    for (int viewId : viewIds) {
-      SparseArray<Parcelable> viewState =
-          savedState.getSparseParcelableArray(VIEW_STATE_PREFIX + viewId);
-      if (viewState != null) {
-        state.viewStateById.put(viewId, viewState);
-      }
+    if (!savedState.containsKey(SPILLED_INDEX)) {
+      // Only the key is decoded up front, the rest when it is first needed.
+      state.unread = savedState;
+      // Saved again as is, until it changes.
+      state.saved = savedState;
+    } else if (store != null && segment != null) {
+      state.spilled = new Spilled(store, segment, savedState.getInt(SPILLED_INDEX),
+          savedState.getLong(SPILLED_CHECKSUM));
     }
-    state.bundle = savedState.getBundle(BUNDLE);
     return state;
   }
 
+  /**
+   * Undoes {@link #toBundle(KeyParceler, List, int)}, for when the segment could not be written.
+   */
+  static Bundle unspill(Bundle frame, List<byte[]> segment) {
+    if (!frame.containsKey(SPILLED_INDEX)) return frame;
+    final Bundle contents = unmarshall(segment.get(frame.getInt(SPILLED_INDEX)));
+    contents.putParcelable(KEY, frame.getParcelable(KEY));
+    return contents;
+  }
+
+  private static byte[] marshall(Bundle bundle) {
+    final Parcel parcel = Parcel.obtain();
+    try {
+      parcel.writeBundle(bundle);
+      return parcel.marshall();
+    } finally {
+      parcel.recycle();
+    }
+  }
+
+  private static Bundle unmarshall(byte[] bytes) {
+    final Parcel parcel = Parcel.obtain();
+    try {
+      parcel.unmarshall(bytes, 0, bytes.length);
+      parcel.setDataPosition(0);
+      return parcel.readBundle(State.class.getClassLoader());
+    } finally {
+      parcel.recycle();
+    }
+  }
+
+  private static long checksum(byte[] bytes) {
+    final CRC32 crc = new CRC32();
+    crc.update(bytes, 0, bytes.length);
+    return crc.getValue();
+  }
+
   private final Object key;
   @Nullable private Bundle bundle;
   @NonNull private Map<Integer, SparseArray<Parcelable>> viewStateById = new LinkedHashMap<>();
+  /**
+   * View states {@link #pack packed} into a buffer instead of being held as live objects, while
+   * the key is not on top or once restored from the packed layout. Then {@link #viewStateById} is
+   * empty.
+   */
+  @Nullable private byte[] compactViewState;
+  /**
+   * Where the contents of a restored state are, until they are first needed: either still in the
+   * bundle it was restored from, or in a {@link StateStore}.
+   */
+  @Nullable private Bundle unread;
+  @Nullable private Spilled spilled;
+  /**
+   * What {@link #toBundle} made last time, and its contents marshalled without the key if it was
+   * measured to spill. Cleared whenever the state changes, so only changed states are saved again.
+   */
+  @Nullable private Bundle saved;
+  @Nullable private byte[] savedContents;
 
   State(Object key) {
     // No external instances.
@@ -67,6 +144,41 @@ public class State {
     return state;
   }
 
+  private void readContents(Bundle savedState) {
+    int layout = savedState.getInt(LAYOUT, PER_VIEW_LAYOUT);
+    if (layout == PACKED_LAYOUT) {
+      // Unpacked when the views are restored.
+      compactViewState = savedState.getByteArray(VIEW_STATES);
+    } else if (layout == PER_VIEW_LAYOUT) {
+      int[] viewIds =
+          checkNotNull(savedState.getIntArray(VIEW_STATE_IDS), "Null view state ids?");
+      for (int viewId : viewIds) {
+        SparseArray<Parcelable> viewState =
+            savedState.getSparseParcelableArray(VIEW_STATE_PREFIX + viewId);
+        if (viewState != null) {
+          viewStateById.put(viewId, viewState);
+        }
+      }
+    } else {
+      throw new IllegalStateException("Unknown saved state layout " + layout);
+    }
+    bundle = savedState.getBundle(BUNDLE);
+  }
+
+  /** Decodes the contents of a restored state, if not done yet. */
+  private void readRestored() {
+    final Bundle unread = this.unread;
+    final Spilled spilled = this.spilled;
+    this.unread = null;
+    this.spilled = null;
+    if (unread != null) {
+      readContents(unread);
+    } else if (spilled != null) {
+      final Bundle contents = spilled.read();
+      if (contents != null) readContents(contents);
+    }
+  }
+
   /**
    * Save view hierarchy state so it can be restored later from {@link #restore(View)}.  The view
    * must have a non-zero id.
@@ -77,10 +189,15 @@ public class State {
         "Cannot save state for View with no id " + view.getClass().getSimpleName());
     SparseArray<Parcelable> state = new SparseArray<>();
     view.saveHierarchyState(state);
+    readRestored();
+    changed();
+    expandViewState();
     viewStateById.put(viewId, state);
   }
 
   public void restore(@NonNull View view) {
+    readRestored();
+    expandViewState();
     SparseArray<Parcelable> viewState = viewStateById.get(view.getId());
     if (viewState != null) {
       view.restoreHierarchyState(viewState);
@@ -88,33 +205,186 @@ public class State {
   }
 
   public void setBundle(@Nullable Bundle bundle) {
+    readRestored();
+    changed();
     this.bundle = bundle;
   }
 
+  /** Note that the bundle is counted as changed, since the caller may write to it. */
   @Nullable public Bundle getBundle() {
+    readRestored();
+    changed();
     return bundle;
   }
 
+  /** Size of the buffer holding the view states of this key while compacted, or zero. */
+  public int getCompactViewStateBytes() {
+    return compactViewState == null ? 0 : compactViewState.length;
+  }
+
+  /**
+   * Marshals the saved view states into a single buffer, until they are next saved or restored.
+   * Left as they are if they cannot be flattened, for instance if they hold a binder.
+   */
+  void compactViewState() {
+    if (unread != null || spilled != null || compactViewState != null
+        || viewStateById.isEmpty()) {
+      return;
+    }
+    final byte[] packed = pack(viewStateById);
+    if (packed == null) return;
+    compactViewState = packed;
+    viewStateById = new LinkedHashMap<>();
+    // Would keep the live states reachable.
+    changed();
+  }
+
+  /**
+   * Marshals view states into one buffer: their count, then the id and states of each view.
+   * Returns null if they cannot be flattened, for instance if they hold a binder.
+   */
+  @Nullable private static byte[] pack(Map<Integer, SparseArray<Parcelable>> viewStates) {
+    final Parcel parcel = Parcel.obtain();
+    try {
+      parcel.writeInt(viewStates.size());
+      for (Map.Entry<Integer, SparseArray<Parcelable>> entry : viewStates.entrySet()) {
+        parcel.writeInt(entry.getKey());
+        @SuppressWarnings("unchecked") //
+        final SparseArray<Object> viewState = (SparseArray) entry.getValue();
+        parcel.writeSparseArray(viewState);
+      }
+      return parcel.marshall();
+    } catch (RuntimeException e) {
+      return null;
+    } finally {
+      parcel.recycle();
+    }
+  }
+
+  private void changed() {
+    saved = null;
+    savedContents = null;
+  }
+
+  private void expandViewState() {
+    if (compactViewState == null) return;
+    viewStateById = viewStates();
+    compactViewState = null;
+  }
+
+  /** The view states by view id, unpacked if compacted. */
+  private Map<Integer, SparseArray<Parcelable>> viewStates() {
+    return compactViewState == null ? viewStateById : unpack(compactViewState);
+  }
+
+  private static Map<Integer, SparseArray<Parcelable>> unpack(byte[] packed) {
+    final Map<Integer, SparseArray<Parcelable>> viewStates = new LinkedHashMap<>();
+    final Parcel parcel = Parcel.obtain();
+    try {
+      parcel.unmarshall(packed, 0, packed.length);
+      parcel.setDataPosition(0);
+      for (int i = parcel.readInt(); i > 0; i--) {
+        final int viewId = parcel.readInt();
+        @SuppressWarnings("unchecked") //
+        final SparseArray<Parcelable> viewState =
+            parcel.readSparseArray(State.class.getClassLoader());
+        viewStates.put(viewId, viewState);
+      }
+    } finally {
+      parcel.recycle();
+    }
+    return viewStates;
+  }
+
+  /**
+   * Reads the contents of a state restored from a {@link StateStore} segment into memory, without
+   * decoding them, so that the segment can be deleted.
+   */
+  void loadSpilled() {
+    if (spilled != null) spilled.load();
+  }
+
+  /**
+   * A rough guess at the memory held by this state, for bounding caches. Saved views and bundle
+   * entries are counted at a flat rate, since measuring them would mean parceling them.
+   */
+  int estimateBytes() {
+    int bytes = 64;
+    if (compactViewState != null) bytes += 32 + compactViewState.length;
+    if (spilled != null && spilled.contents != null) bytes += 32 + spilled.contents.length;
+    for (SparseArray<Parcelable> viewState : viewStateById.values()) {
+      bytes += 32 + 128 * viewState.size();
+    }
+    if (bundle != null) bytes += 32 + 64 * bundle.size();
+    return bytes;
+  }
+
+  /** Returns the same bundle as last time if the state did not change since. */
   Bundle toBundle(KeyParceler parceler) {
+    if (saved != null) return saved;
+    readRestored();
     Bundle outState = new Bundle();
     outState.putParcelable(KEY, parceler.toParcelable(getKey()));
-    int[] viewIds = new int[viewStateById.size()];
-    int c = 0;
-    for (Map.Entry<Integer, SparseArray<Parcelable>> entry : viewStateById.entrySet()) {
-      Integer viewId = entry.getKey();
-      viewIds[c++] = viewId;
-      SparseArray<Parcelable> viewState = entry.getValue();
-      if (viewState.size() > 0) {
-        outState.putSparseParcelableArray(VIEW_STATE_PREFIX + viewId, viewState);
+    // A compacted state is already packed, and is likely to stay in the background.
+    byte[] packed = compactViewState;
+    if (packed == null && !viewStateById.isEmpty()) packed = pack(viewStateById);
+    if (packed != null || viewStateById.isEmpty()) {
+      outState.putInt(LAYOUT, PACKED_LAYOUT);
+      if (packed != null) outState.putByteArray(VIEW_STATES, packed);
+    } else {
+      // Could not be flattened, but might still go through the Bundle.
+      int[] viewIds = new int[viewStateById.size()];
+      int c = 0;
+      for (Map.Entry<Integer, SparseArray<Parcelable>> entry : viewStateById.entrySet()) {
+        Integer viewId = entry.getKey();
+        viewIds[c++] = viewId;
+        SparseArray<Parcelable> viewState = entry.getValue();
+        if (viewState.size() > 0) {
+          outState.putSparseParcelableArray(VIEW_STATE_PREFIX + viewId, viewState);
+        }
       }
+      outState.putIntArray(VIEW_STATE_IDS, viewIds);
     }
-    outState.putIntArray(VIEW_STATE_IDS, viewIds);
     if (bundle != null && !bundle.isEmpty()) {
       outState.putBundle(BUNDLE, bundle);
     }
+    saved = outState;
     return outState;
   }
 
+  /**
+   * Like {@link #toBundle(KeyParceler)}, but if its contents marshal to more than the threshold,
+   * they are moved into the next frame of the segment, leaving only the key in the bundle.
+   */
+  Bundle toBundle(KeyParceler parceler, List<byte[]> segment, int thresholdBytes) {
+    if (spilled != null) {
+      // Not even read since it was restored from an older segment, so its frame is carried over
+      // as it is, without decoding it.
+      final byte[] contents = spilled.load();
+      if (contents != null && contents.length > thresholdBytes) {
+        return spill(parceler.toParcelable(getKey()), contents, spilled.checksum, segment);
+      }
+    }
+    final Bundle frame = toBundle(parceler);
+    if (savedContents == null) {
+      final Bundle contents = new Bundle(frame);
+      contents.remove(KEY);
+      savedContents = marshall(contents);
+    }
+    if (savedContents.length <= thresholdBytes) return frame;
+    return spill(frame.getParcelable(KEY), savedContents, checksum(savedContents), segment);
+  }
+
+  private static Bundle spill(Parcelable key, byte[] contents, long checksum,
+      List<byte[]> segment) {
+    final Bundle spilled = new Bundle();
+    spilled.putParcelable(KEY, key);
+    spilled.putInt(SPILLED_INDEX, segment.size());
+    spilled.putLong(SPILLED_CHECKSUM, checksum);
+    segment.add(contents);
+    return spilled;
+  }
+
   @Override public boolean equals(Object o) {
     if (this == o) return true;
     if (o == null || getClass() != o.getClass()) return false;
@@ -130,6 +400,56 @@ public class State {
     return getKey().toString();
   }
 
+  private static final class Spilled {
+    final StateStore store;
+    final String segment;
+    final int index;
+    final long checksum;
+    /** The frame once {@link #load loaded}, which no longer needs the segment. */
+    @Nullable private byte[] contents;
+    private boolean loaded;
+
+    Spilled(StateStore store, String segment, int index, long checksum) {
+      this.store = store;
+      this.segment = segment;
+      this.index = index;
+      this.checksum = checksum;
+    }
+
+    /**
+     * Reads the frame from the store the first time, without decoding it. Returns null if it is
+     * gone or does not match.
+     */
+    @Nullable byte[] load() {
+      if (!loaded) {
+        loaded = true;
+        try {
+          final byte[] bytes = store.read(segment, index);
+          if (checksum(bytes) == checksum) contents = bytes;
+        } catch (IOException ignored) {
+        } catch (RuntimeException ignored) {
+          // A store that misbehaves.
+        }
+      }
+      return contents;
+    }
+
+    /**
+     * Returns null if the frame is gone, does not match or cannot be decoded, then the state
+     * starts out empty.
+     */
+    @Nullable Bundle read() {
+      final byte[] contents = load();
+      if (contents == null) return null;
+      try {
+        return unmarshall(contents);
+      } catch (RuntimeException e) {
+        // Contents that no longer unmarshall, like a class that was renamed since.
+        return null;
+      }
+    }
+  }
+
   private static final class EmptyState extends State {
     EmptyState(Object flowState) {
       super(flowState);
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow;
+
+import android.support.annotation.NonNull;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Holds saved state that is too large to go in the Activity's saved instance state, so that deep
+ * histories do not overflow the binder transaction limit. Each save writes one segment; the
+ * Bundle only keeps the segment's token and a checksum of each frame. Installed with {@link
+ * Installer#stateStore}.
+ * <p>
+ * Called on the main thread.
+ */
+public interface StateStore {
+  /** Writes a new segment holding the given frames, and returns the token to read them back. */
+  @NonNull String write(@NonNull List<byte[]> frames) throws IOException;
+
+  /** Reads a frame of a segment that was written earlier. */
+  @NonNull byte[] read(@NonNull String token, int index) throws IOException;
+
+  /**
+   * Deletes a segment that was written earlier. Called once a save no longer needs it. Only the
+   * segments written or restored by the same Activity are deleted, so stores may be shared.
+   */
+  void delete(@NonNull String token);
+}
@@ -21,20 +21,70 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
 public final class Traversal {
+  /** Notified when a traversal is {@link #isCancelled() cancelled}. */
+  public interface OnCancelListener {
+    /**
+     * Called on the main thread. The dispatcher should bring the UI to the traversal's end state,
+     * for instance by ending any animation, and call {@link
+     * TraversalCallback#onTraversalCompleted} then. Any later call for this traversal is ignored.
+     */
+    void onCancel();
+  }
+
   /** May be null if this is a traversal into the start state. */
   @Nullable public final History origin;
   @NonNull public final History destination;
   @NonNull public final Direction direction;
   private final KeyManager keyManager;
+  @Nullable private HistoryDiff diff;
+  private volatile boolean cancelled;
+  @Nullable private OnCancelListener onCancelListener;
 
   Traversal(@Nullable History from, @NonNull History to, @NonNull Direction direction,
-      KeyManager keyManager) {
+      @Nullable HistoryDiff diff, KeyManager keyManager) {
     this.origin = from;
     this.destination = to;
     this.direction = direction;
+    this.diff = diff;
     this.keyManager = keyManager;
   }
 
+  /**
+   * Describes which frames of the {@link #origin} are kept, and which are removed or inserted, to
+   * arrive at the {@link #destination}. For bootstrap traversals every frame is inserted.
+   */
+  @NonNull public HistoryDiff getDiff() {
+    if (diff == null) {
+      diff = HistoryDiff.between(origin, destination);
+    }
+    return diff;
+  }
+
+  /**
+   * True once a newer traversal has superseded this one. A traversal that is still being {@link
+   * PreparingDispatcher#prepare prepared} is cancelled when any other is requested; one that has
+   * been dispatched is only cancelled by {@link Flow#preempt()}.
+   */
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  /**
+   * Registers the listener to be told when this traversal is cancelled, replacing any previous
+   * one. Dispatchers that register a listener allow their traversals to be preempted. If the
+   * traversal is already cancelled, the listener is notified immediately.
+   */
+  public void setOnCancelListener(@Nullable OnCancelListener listener) {
+    onCancelListener = listener;
+    if (cancelled && listener != null) listener.onCancel();
+  }
+
+  void cancel() {
+    if (cancelled) return;
+    cancelled = true;
+    if (onCancelListener != null) onCancelListener.onCancel();
+  }
+
   /**
    * Creates a Context for the given key.
    *
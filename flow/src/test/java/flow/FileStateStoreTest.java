@@ -0,0 +1,117 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class FileStateStoreTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test public void framesAreReadBackByIndex() throws IOException {
+    FileStateStore store = new FileStateStore(new File(folder.getRoot(), "state"));
+    String token = store.write(asList(new byte[] {1, 2}, new byte[0], new byte[] {3, 4, 5}));
+
+    assertThat(store.read(token, 0)).containsExactly(new byte[] {1, 2});
+    assertThat(store.read(token, 1)).isEmpty();
+    assertThat(store.read(token, 2)).containsExactly(new byte[] {3, 4, 5});
+  }
+
+  @Test public void eachWriteIsANewSegment() throws IOException {
+    FileStateStore store = new FileStateStore(folder.getRoot());
+    String first = store.write(asList(new byte[] {1}));
+    String second = store.write(asList(new byte[] {2}));
+
+    assertThat(second).isNotEqualTo(first);
+    assertThat(store.read(first, 0)).containsExactly(new byte[] {1});
+    assertThat(store.read(second, 0)).containsExactly(new byte[] {2});
+  }
+
+  @Test public void deleteOnlyDeletesTheGivenSegment() throws IOException {
+    FileStateStore store = new FileStateStore(folder.getRoot());
+    String stale = store.write(asList(new byte[] {1}));
+    String current = store.write(asList(new byte[] {2}));
+    File other = folder.newFile("not-a-segment");
+
+    store.delete(stale);
+    store.delete(other.getName());
+
+    assertThat(store.read(current, 0)).containsExactly(new byte[] {2});
+    assertThat(other).exists();
+    try {
+      store.read(stale, 0);
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+
+  @Test public void corruptLengthsAreRejected() throws IOException {
+    FileStateStore store = new FileStateStore(folder.getRoot());
+    String token = store.write(asList(new byte[] {1, 2}, new byte[] {3}));
+    File file = new File(folder.getRoot(), token);
+
+    for (int corrupt : new int[] {-1, Integer.MAX_VALUE}) {
+      final RandomAccessFile out = new RandomAccessFile(file, "rw");
+      try {
+        // The length of the first frame.
+        out.seek(4);
+        out.writeInt(corrupt);
+      } finally {
+        out.close();
+      }
+      try {
+        store.read(token, 1);
+        fail();
+      } catch (IOException expected) {
+      }
+    }
+  }
+
+  @Test public void corruptCountsAreRejected() throws IOException {
+    FileStateStore store = new FileStateStore(folder.getRoot());
+    String token = store.write(asList(new byte[] {1, 2}));
+    final RandomAccessFile out = new RandomAccessFile(new File(folder.getRoot(), token), "rw");
+    try {
+      out.writeInt(Integer.MAX_VALUE);
+    } finally {
+      out.close();
+    }
+
+    try {
+      store.read(token, 0);
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+
+  @Test public void tokensOutsideTheDirectoryAreRejected() throws IOException {
+    FileStateStore store = new FileStateStore(folder.getRoot());
+    try {
+      store.read("segment-1" + File.separator + ".." + File.separator + "x", 0);
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+}
@@ -20,16 +20,24 @@ import android.support.annotation.NonNull;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
 
 import static java.util.Arrays.asList;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -407,6 +415,622 @@ public class FlowTest {
     assertThat(lastStack.top()).isSameAs(able);
   }
 
+  @Test public void setHistoryKeepsOriginalsAboveADifference() {
+    TestKey echo = new TestKey("Echo");
+    History history =
+        History.emptyBuilder().pushAll(Arrays.<Object>asList(able, baker, charlie, delta)).build();
+    Flow flow = new Flow(keyManager, history);
+    final List<Traversal> traversals = new ArrayList<>();
+    flow.setDispatcher(new Dispatcher() {
+      @Override public void dispatch(@NonNull Traversal traversal,
+          @NonNull TraversalCallback callback) {
+        traversals.add(traversal);
+        callback.onTraversalCompleted();
+      }
+    });
+
+    flow.setHistory(History.emptyBuilder()
+        .pushAll(Arrays.<Object>asList(new TestKey("Able"), echo, new TestKey("Charlie"),
+            new TestKey("Delta")))
+        .build(), Direction.REPLACE);
+    Traversal traversal = traversals.get(1);
+    assertThat(traversal.getDiff().getRemoved()).containsExactly(baker);
+    assertThat(traversal.getDiff().getInserted()).containsExactly(echo);
+    assertThat(traversal.destination.peek(0)).isSameAs(delta);
+    assertThat(traversal.destination.peek(1)).isSameAs(charlie);
+    assertThat(traversal.destination.peek(3)).isSameAs(able);
+  }
+
+  @Test public void coalescingFoldsQueuedTraversals() {
+    AsyncDispatcher dispatcher = new AsyncDispatcher();
+    Flow flow = new Flow(keyManager, History.single(able));
+    flow.setCoalescing(true);
+    flow.setDispatcher(dispatcher);
+    dispatcher.fire();
+
+    flow.set(baker);
+    flow.set(charlie);
+    flow.set(delta);
+    flow.goBack();
+    dispatcher.assertDispatching(baker);
+    dispatcher.fire();
+
+    dispatcher.assertDispatching(charlie);
+    assertThat(dispatcher.traversal.origin.top()).isEqualTo(baker);
+    assertThat(dispatcher.traversal.destination.asList()).containsExactly(able, baker, charlie);
+    assertThat(dispatcher.traversal.direction).isEqualTo(Direction.FORWARD);
+    dispatcher.fire();
+    dispatcher.assertIdle();
+
+    verify(keyManager, never()).setUp(eq(delta), any());
+    assertThat(flow.getHistory().asList()).containsExactly(able, baker, charlie);
+  }
+
+  @Test public void coalescingStopsAtClearedHistory() {
+    AsyncDispatcher dispatcher = new AsyncDispatcher();
+    Flow flow = new Flow(keyManager, History.single(able));
+    flow.setCoalescing(true);
+    flow.setHistoryCallback(historyCallback);
+    flow.setDispatcher(dispatcher);
+    dispatcher.fire();
+
+    flow.set(baker);
+    flow.goBack();
+    flow.goBack();
+    dispatcher.fire();
+    verify(historyCallback, never()).onHistoryCleared();
+
+    // set() and the first goBack() were folded into one traversal back to able. Folding stops at
+    // the second goBack(), which still runs on its own and clears the history.
+    dispatcher.assertDispatching(able);
+    dispatcher.fire();
+    verify(historyCallback, times(1)).onHistoryCleared();
+  }
+
+  @Test public void queueDepthCountsWaitingTraversals() {
+    AsyncDispatcher dispatcher = new AsyncDispatcher();
+    Flow flow = new Flow(keyManager, History.single(able));
+    flow.setDispatcher(dispatcher);
+    dispatcher.fire();
+    assertThat(flow.getQueueDepth()).isEqualTo(0);
+
+    flow.set(baker);
+    assertThat(flow.getQueueDepth()).isEqualTo(0);
+    flow.set(charlie);
+    flow.set(delta);
+    assertThat(flow.getQueueDepth()).isEqualTo(2);
+
+    dispatcher.fire();
+    assertThat(flow.getQueueDepth()).isEqualTo(1);
+    dispatcher.fire();
+    dispatcher.fire();
+    assertThat(flow.getQueueDepth()).isEqualTo(0);
+  }
+
+  @Test public void longQueuesDoNotRecurse() {
+    AsyncDispatcher dispatcher = new AsyncDispatcher();
+    Flow flow = new Flow(keyManager, History.single(able));
+    flow.setDispatcher(dispatcher);
+    dispatcher.fire();
+
+    flow.set(baker);
+    for (int i = 0; i < 100000; i++) {
+      flow.replaceTop(new TestKey("Key" + i), Direction.REPLACE);
+    }
+    assertThat(flow.getQueueDepth()).isEqualTo(100000);
+  }
+
+  @Test public void fullQueueDropsNewest() {
+    AsyncDispatcher dispatcher = new AsyncDispatcher();
+    Flow flow = new Flow(keyManager, History.single(able));
+    flow.setQueueCapacity(1, OverflowPolicy.DROP_NEWEST);
+    flow.setDispatcher(dispatcher);
+    dispatcher.fire();
+
+    flow.set(baker);
+    flow.set(charlie);
+    flow.set(delta);
+    assertThat(flow.getQueueDepth()).isEqualTo(1);
+    dispatcher.fire();
+    dispatcher.assertDispatching(charlie);
+    dispatcher.fire();
+    dispatcher.assertIdle();
+  }
+
+  @Test public void fullQueueDropsOldest() {
+    AsyncDispatcher dispatcher = new AsyncDispatcher();
+    Flow flow = new Flow(keyManager, History.single(able));
+    flow.setQueueCapacity(1, OverflowPolicy.DROP_OLDEST);
+    flow.setDispatcher(dispatcher);
+    dispatcher.fire();
+
+    flow.set(baker);
+    flow.set(charlie);
+    flow.set(delta);
+    assertThat(flow.getQueueDepth()).isEqualTo(1);
+    dispatcher.fire();
+    dispatcher.assertDispatching(delta);
+    dispatcher.fire();
+    dispatcher.assertIdle();
+    assertThat(flow.getHistory().asList()).containsExactly(able, baker, delta);
+  }
+
+  @Test public void fullQueueCoalesces() {
+    AsyncDispatcher dispatcher = new AsyncDispatcher();
+    Flow flow = new Flow(keyManager, History.single(able));
+    flow.setQueueCapacity(2, OverflowPolicy.COALESCE);
+    flow.setDispatcher(dispatcher);
+    dispatcher.fire();
+
+    flow.set(baker);
+    flow.set(charlie);
+    flow.set(delta);
+    flow.goBack();
+    assertThat(flow.getQueueDepth()).isEqualTo(2);
+    dispatcher.fire();
+    dispatcher.assertDispatching(delta);
+    dispatcher.fire();
+    dispatcher.assertDispatching(charlie);
+    dispatcher.fire();
+    dispatcher.assertIdle();
+    assertThat(flow.getHistory().asList()).containsExactly(able, baker, charlie);
+  }
+
+  @Test public void batchDispatchesOnce() {
+    History history =
+        History.emptyBuilder().pushAll(Arrays.<Object>asList(able, baker, charlie)).build();
+    Flow flow = new Flow(keyManager, history);
+    final List<Traversal> traversals = new ArrayList<>();
+    flow.setDispatcher(new Dispatcher() {
+      @Override public void dispatch(@NonNull Traversal traversal,
+          @NonNull TraversalCallback callback) {
+        traversals.add(traversal);
+        callback.onTraversalCompleted();
+      }
+    });
+    traversals.clear();
+
+    final TestKey echo = new TestKey("Echo");
+    flow.batch(Direction.FORWARD, new HistoryEdit() {
+      @Override public void apply(@NonNull History.Builder builder) {
+        builder.pop(2).push(delta);
+      }
+    }, new HistoryEdit() {
+      @Override public void apply(@NonNull History.Builder builder) {
+        builder.push(echo);
+      }
+    });
+
+    assertThat(traversals).hasSize(1);
+    assertThat(traversals.get(0).direction).isEqualTo(Direction.FORWARD);
+    assertThat(flow.getHistory().asList()).containsExactly(able, delta, echo);
+    verify(keyManager).setUp(eq(echo), any());
+    verify(keyManager, never()).setUp(eq(delta), any());
+  }
+
+  @Test public void batchThatEmptiesHistoryClearsIt() {
+    Flow flow = new Flow(keyManager, History.single(able));
+    flow.setHistoryCallback(historyCallback);
+    flow.setDispatcher(new FlowDispatcher());
+
+    flow.batch(Direction.BACKWARD, new HistoryEdit() {
+      @Override public void apply(@NonNull History.Builder builder) {
+        builder.clear();
+      }
+    });
+    verify(historyCallback).onHistoryCleared();
+  }
+
+  static class QueueExecutor implements Executor {
+    final Queue<Runnable> commands = new LinkedList<>();
+
+    @Override public void execute(@NonNull Runnable command) {
+      commands.add(command);
+    }
+
+    void runAll() {
+      while (!commands.isEmpty()) {
+        commands.remove().run();
+      }
+    }
+  }
+
+  class RecordingPreparingDispatcher extends FlowDispatcher implements PreparingDispatcher {
+    final List<Object> prepared = new ArrayList<>();
+
+    @Override public void prepare(@NonNull Traversal traversal) {
+      prepared.add(traversal.destination.top());
+    }
+  }
+
+  @Test public void failedPreparationIsUndoneAndFlowMovesOn() {
+    QueueExecutor background = new QueueExecutor();
+    QueueExecutor main = new QueueExecutor();
+    RecordingPreparingDispatcher dispatcher = new RecordingPreparingDispatcher() {
+      @Override public void prepare(@NonNull Traversal traversal) {
+        super.prepare(traversal);
+        if (traversal.destination.top() == baker) throw new IllegalStateException("boom");
+      }
+    };
+    Flow flow = new Flow(keyManager, History.single(able));
+    flow.setPrepareExecutor(background, main);
+    flow.setDispatcher(dispatcher);
+
+    flow.set(baker);
+    background.runAll();
+    try {
+      main.runAll();
+      fail("Preparation failure should have been rethrown");
+    } catch (IllegalStateException expected) {
+      assertThat(expected).hasMessage("boom");
+    }
+    verify(keyManager).tearDown(eq(baker), eq(able));
+    assertThat(flow.getHistory().top()).isEqualTo(able);
+
+    flow.set(charlie);
+    background.runAll();
+    main.runAll();
+    assertThat(dispatcher.prepared).containsExactly(baker, charlie);
+    assertThat(flow.getHistory().top()).isEqualTo(charlie);
+  }
+
+  @Test public void errorsWhilePreparingAreRethrownOnTheMainThread() {
+    QueueExecutor background = new QueueExecutor();
+    QueueExecutor main = new QueueExecutor();
+    RecordingPreparingDispatcher dispatcher = new RecordingPreparingDispatcher() {
+      @Override public void prepare(@NonNull Traversal traversal) {
+        super.prepare(traversal);
+        if (traversal.destination.top() == baker) throw new LinkageError("boom");
+      }
+    };
+    Flow flow = new Flow(keyManager, History.single(able));
+    flow.setPrepareExecutor(background, main);
+    flow.setDispatcher(dispatcher);
+
+    flow.set(baker);
+    background.runAll();
+    try {
+      main.runAll();
+      fail("Preparation error should have been rethrown");
+    } catch (LinkageError expected) {
+      assertThat(expected).hasMessage("boom");
+    }
+    verify(keyManager).tearDown(eq(baker), eq(able));
+
+    flow.set(charlie);
+    background.runAll();
+    main.runAll();
+    assertThat(flow.getHistory().top()).isEqualTo(charlie);
+  }
+
+  @Test public void queueCoalescedWhilePreparingSurvivesFailedPreparation() {
+    QueueExecutor background = new QueueExecutor();
+    QueueExecutor main = new QueueExecutor();
+    RecordingPreparingDispatcher dispatcher = new RecordingPreparingDispatcher() {
+      @Override public void prepare(@NonNull Traversal traversal) {
+        super.prepare(traversal);
+        if (traversal.destination.top() == baker) throw new IllegalStateException("boom");
+      }
+    };
+    TestKey echo = new TestKey("Echo");
+    Flow flow = new Flow(keyManager, History.single(able));
+    flow.setQueueCapacity(2, OverflowPolicy.COALESCE);
+    flow.setPrepareExecutor(background, main);
+    flow.setDispatcher(dispatcher);
+
+    flow.set(baker);
+    background.runAll();
+    // Folded against where baker's traversal was going, before it is known to have failed.
+    flow.set(charlie);
+    flow.set(delta);
+    flow.set(echo);
+    try {
+      main.runAll();
+      fail("Preparation failure should have been rethrown");
+    } catch (IllegalStateException expected) {
+      assertThat(expected).hasMessage("boom");
+    }
+    while (!background.commands.isEmpty() || !main.commands.isEmpty()) {
+      background.runAll();
+      main.runAll();
+    }
+
+    assertThat(flow.getHistory().asList()).containsExactly(able, charlie, delta, echo);
+    assertThat(flow.getQueueDepth()).isEqualTo(0);
+  }
+
+  @Test public void queueCoalescedWhilePreparingSurvivesCancelledPreparation() {
+    QueueExecutor background = new QueueExecutor();
+    QueueExecutor main = new QueueExecutor();
+    RecordingPreparingDispatcher dispatcher = new RecordingPreparingDispatcher();
+    TestKey echo = new TestKey("Echo");
+    Flow flow = new Flow(keyManager, History.single(able));
+    flow.setQueueCapacity(2, OverflowPolicy.COALESCE);
+    flow.setPrepareExecutor(background, main);
+    flow.setDispatcher(dispatcher);
+
+    flow.set(baker);
+    // Cancels the preparation of baker, and is folded against where it was going.
+    flow.set(charlie);
+    flow.set(delta);
+    flow.set(echo);
+    background.runAll();
+    main.runAll();
+    background.runAll();
+    main.runAll();
+
+    assertThat(dispatcher.prepared).containsExactly(echo);
+    assertThat(flow.getHistory().asList()).containsExactly(able, baker, charlie, delta, echo);
+    assertThat(flow.getQueueDepth()).isEqualTo(0);
+  }
+
+  @Test public void preparingDispatcherPreparesOffTheMainThread() {
+    QueueExecutor background = new QueueExecutor();
+    QueueExecutor main = new QueueExecutor();
+    RecordingPreparingDispatcher dispatcher = new RecordingPreparingDispatcher();
+    Flow flow = new Flow(keyManager, History.single(able));
+    flow.setPrepareExecutor(background, main);
+    flow.setDispatcher(dispatcher);
+
+    flow.set(baker);
+    verify(keyManager, never()).setUp(eq(baker), any());
+    assertThat(lastStack.top()).isEqualTo(able);
+
+    background.runAll();
+    verify(keyManager).setUp(eq(baker), any());
+    assertThat(dispatcher.prepared).containsExactly(baker);
+    assertThat(lastStack.top()).isEqualTo(able);
+
+    main.runAll();
+    assertThat(lastStack.top()).isEqualTo(baker);
+    assertThat(flow.getHistory().top()).isEqualTo(baker);
+  }
+
+  @Test public void supersededPrepareIsCancelledAndFolded() {
+    QueueExecutor background = new QueueExecutor();
+    QueueExecutor main = new QueueExecutor();
+    RecordingPreparingDispatcher dispatcher = new RecordingPreparingDispatcher();
+    Flow flow = new Flow(keyManager, History.single(able));
+    flow.setPrepareExecutor(background, main);
+    flow.setDispatcher(dispatcher);
+
+    flow.set(baker);
+    flow.set(charlie);
+    background.runAll();
+    main.runAll();
+    background.runAll();
+    main.runAll();
+
+    verify(keyManager, never()).setUp(eq(baker), any());
+    assertThat(dispatcher.prepared).containsExactly(charlie);
+    assertThat(lastStack.asList()).containsExactly(able, baker, charlie);
+    assertThat(flow.getQueueDepth()).isEqualTo(0);
+  }
+
+  @Test public void preemptSkipsRunningTraversal() {
+    final List<TraversalCallback> callbacks = new ArrayList<>();
+    Flow flow = new Flow(keyManager, History.single(able));
+    flow.setDispatcher(new Dispatcher() {
+      @Override public void dispatch(@NonNull Traversal traversal,
+          @NonNull final TraversalCallback callback) {
+        lastStack = traversal.destination;
+        callbacks.add(callback);
+        traversal.setOnCancelListener(new Traversal.OnCancelListener() {
+          @Override public void onCancel() {
+            callback.onTraversalCompleted();
+          }
+        });
+      }
+    });
+    callbacks.get(0).onTraversalCompleted();
+
+    flow.set(baker);
+    assertThat(lastStack.top()).isEqualTo(baker);
+    flow.preempt();
+    assertThat(flow.getHistory().top()).isEqualTo(baker);
+
+    flow.goBack();
+    assertThat(lastStack.top()).isEqualTo(able);
+    // The animation that was cut short finishes anyway.
+    callbacks.get(1).onTraversalCompleted();
+    callbacks.get(2).onTraversalCompleted();
+    assertThat(flow.getHistory().top()).isEqualTo(able);
+  }
+
+  @Test public void preemptWaitsForDispatchersThatDoNotListen() {
+    AsyncDispatcher dispatcher = new AsyncDispatcher();
+    Flow flow = new Flow(keyManager, History.single(able));
+    flow.setDispatcher(dispatcher);
+    dispatcher.fire();
+
+    flow.set(baker);
+    flow.preempt();
+    flow.goBack();
+    dispatcher.assertDispatching(baker);
+    dispatcher.fire();
+    dispatcher.assertDispatching(able);
+  }
+
+  @Test public void onlyCancelledTraversalsMayCompleteTwice() {
+    AsyncDispatcher dispatcher = new AsyncDispatcher();
+    Flow flow = new Flow(keyManager, History.single(able));
+    flow.setDispatcher(dispatcher);
+    TraversalCallback callback = dispatcher.callback;
+    dispatcher.fire();
+    try {
+      callback.onTraversalCompleted();
+      fail("Traversal was not cancelled, should have thrown");
+    } catch (IllegalStateException ignored) {
+      // Correct!
+    }
+  }
+
+  @Test public void keysLeavingTheTopAreCompacted() {
+    Flow flow = new Flow(keyManager, History.single(able));
+    flow.setDispatcher(new FlowDispatcher());
+
+    flow.set(baker);
+    verify(keyManager).compactState(able);
+
+    flow.replaceTop(baker, Direction.REPLACE);
+    verify(keyManager, never()).compactState(baker);
+
+    flow.set(charlie);
+    flow.goBack();
+    verify(keyManager, never()).compactState(charlie);
+  }
+
+  @Test public void deferredTearDownCompactsKeysLeftBelowTheTop() {
+    QueueExecutor idle = new QueueExecutor();
+    Flow flow = new Flow(keyManager, History.single(able));
+    flow.setTearDownExecutor(idle);
+    flow.setDispatcher(new FlowDispatcher());
+    idle.runAll();
+
+    flow.set(baker);
+    verify(keyManager, never()).compactState(able);
+
+    idle.runAll();
+    verify(keyManager).compactState(able);
+  }
+
+  @Test public void deferredTearDownWaitsForExecutor() {
+    QueueExecutor idle = new QueueExecutor();
+    Flow flow = new Flow(keyManager, History.single(able));
+    flow.setTearDownExecutor(idle);
+    flow.setDispatcher(new FlowDispatcher());
+    idle.runAll();
+
+    flow.set(baker);
+    flow.set(charlie);
+    verify(keyManager, never()).tearDown(eq(able), any());
+    verify(keyManager, never()).tearDown(eq(baker), any());
+    // Scheduled once per idle period, not once per traversal.
+    assertThat(idle.commands).hasSize(1);
+
+    idle.runAll();
+    InOrder inOrder = inOrder(keyManager);
+    inOrder.verify(keyManager).tearDown(eq(able), any());
+    inOrder.verify(keyManager).tearDown(eq(baker), any());
+    inOrder.verify(keyManager).clearStatesExcept(flow.getHistory().asList());
+  }
+
+  @Test public void deferredTearDownResurrectsReenteredKeys() {
+    QueueExecutor idle = new QueueExecutor();
+    Flow flow = new Flow(keyManager, History.single(able));
+    flow.setTearDownExecutor(idle);
+    flow.setDispatcher(new FlowDispatcher());
+    idle.runAll();
+
+    flow.set(baker);
+    flow.goBack();
+    verify(keyManager, times(1)).setUp(eq(baker), any());
+    flow.set(baker);
+    verify(keyManager, times(1)).setUp(eq(baker), any());
+    verify(keyManager, times(1)).setUp(eq(able), any());
+
+    idle.runAll();
+    verify(keyManager).tearDown(eq(able), any());
+    verify(keyManager, never()).tearDown(eq(baker), any());
+  }
+
+  @Test public void deferredTearDownWaitsForRunningTraversal() {
+    QueueExecutor idle = new QueueExecutor();
+    AsyncDispatcher dispatcher = new AsyncDispatcher();
+    Flow flow = new Flow(keyManager, History.single(able));
+    flow.setTearDownExecutor(idle);
+    flow.setDispatcher(dispatcher);
+    dispatcher.fire();
+    flow.set(baker);
+    dispatcher.fire();
+
+    flow.set(charlie);
+    idle.runAll();
+    verify(keyManager, never()).tearDown(eq(able), any());
+
+    dispatcher.fire();
+    idle.runAll();
+    verify(keyManager).tearDown(eq(able), any());
+    verify(keyManager).tearDown(eq(baker), any());
+  }
+
+  @Test public void siblingsShareTheirParentsServices() {
+    KeyManagerTest.RecordingFactory factory = new KeyManagerTest.RecordingFactory();
+    KeyManager keyManager = new KeyManager(asList((ServicesFactory) factory));
+    KeyManagerTest.Child bakerChild = new KeyManagerTest.Child("Baker", able);
+    KeyManagerTest.Child charlieChild = new KeyManagerTest.Child("Charlie", able);
+    Flow flow = new Flow(keyManager, History.single(bakerChild));
+    flow.setDispatcher(new FlowDispatcher());
+
+    flow.set(charlieChild);
+    flow.goBack();
+
+    assertThat(factory.bound).containsExactly(able, bakerChild, charlieChild, bakerChild);
+    assertThat(factory.tornDown).containsExactly(bakerChild, charlieChild);
+    keyManager.tearDown(flow.getHistory().top());
+    assertThat(factory.tornDown).containsExactly(bakerChild, charlieChild, bakerChild, able);
+  }
+
+  static class RecordingMonitor extends FlowMonitor {
+    final List<String> events = new ArrayList<>();
+
+    private static String name(Object key) {
+      return key == null ? null : ((TestKey) key).name;
+    }
+
+    @Override public void onTraversalEnqueued(int queueDepth, long timeNanos) {
+      events.add("enqueued " + queueDepth);
+    }
+
+    @Override public void onTraversalExecuted(int queueDepth, long timeNanos) {
+      events.add("executed " + queueDepth);
+    }
+
+    @Override public void onKeySetUp(@NonNull Object key, long startNanos, long endNanos) {
+      assertThat(endNanos).isGreaterThanOrEqualTo(startNanos);
+      events.add("setUp " + name(key));
+    }
+
+    @Override public void onDispatchStarted(Object originKey, @NonNull Object destinationKey,
+        long timeNanos) {
+      events.add("dispatch " + name(originKey) + " -> " + name(destinationKey));
+    }
+
+    @Override
+    public void onTraversalCompleted(@NonNull Object topKey, int queueDepth, long timeNanos) {
+      events.add("completed " + name(topKey) + " " + queueDepth);
+    }
+
+    @Override public void onKeyTornDown(@NonNull Object key, long startNanos, long endNanos) {
+      events.add("tearDown " + name(key));
+    }
+
+    @Override public void onStatesCleared(int kept, long startNanos, long endNanos) {
+      events.add("statesCleared " + kept);
+    }
+  }
+
+  @Test public void monitorSeesEachPhase() {
+    RecordingMonitor monitor = new RecordingMonitor();
+    AsyncDispatcher dispatcher = new AsyncDispatcher();
+    Flow flow = new Flow(keyManager, History.single(able));
+    flow.setMonitor(monitor);
+    flow.setDispatcher(dispatcher);
+    dispatcher.fire();
+    assertThat(monitor.events).containsExactly("enqueued 1", "executed 0", "setUp Able",
+        "dispatch null -> Able", "completed Able 0", "statesCleared 1");
+
+    monitor.events.clear();
+    flow.set(baker);
+    flow.set(charlie);
+    dispatcher.fire();
+    dispatcher.fire();
+    assertThat(monitor.events).containsExactly("enqueued 1", "executed 0", "setUp Baker",
+        "dispatch Able -> Baker", "enqueued 1", "completed Baker 1", "executed 0", "setUp Charlie",
+        "dispatch Baker -> Charlie", "completed Charlie 0", "tearDown Able", "tearDown Baker",
+        "statesCleared 3");
+  }
+
   static class Picky {
     final String value;
 
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow;
+
+import java.util.List;
+import org.junit.Test;
+
+import static flow.HistoryDiff.Change.INSERTED;
+import static flow.HistoryDiff.Change.KEPT;
+import static flow.HistoryDiff.Change.REMOVED;
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HistoryDiffTest {
+  private static final TestKey ABLE = new TestKey("able");
+  private static final TestKey BAKER = new TestKey("baker");
+  private static final TestKey CHARLIE = new TestKey("charlie");
+  private static final TestKey DELTA = new TestKey("delta");
+  private static final TestKey ECHO = new TestKey("echo");
+
+  @Test public void bootstrapInsertsEverything() {
+    HistoryDiff diff = HistoryDiff.between(null, history(ABLE, BAKER));
+    assertThat(diff.getInserted()).containsExactly(ABLE, BAKER);
+    assertThat(diff.getRemoved()).isEmpty();
+    assertThat(diff.isEmpty()).isFalse();
+  }
+
+  @Test public void equalHistoriesAreEmpty() {
+    HistoryDiff diff = HistoryDiff.between(history(ABLE, BAKER), history(ABLE, BAKER));
+    assertThat(diff.isEmpty()).isTrue();
+    assertThat(diff.getEdits()).hasSize(2);
+  }
+
+  @Test public void swapInTheMiddleKeepsTheRest() {
+    HistoryDiff diff = HistoryDiff.between(history(ABLE, BAKER, CHARLIE, DELTA),
+        history(ABLE, ECHO, CHARLIE, DELTA));
+    assertThat(diff.getRemoved()).containsExactly(BAKER);
+    assertThat(diff.getInserted()).containsExactly(ECHO);
+    assertChanges(diff, KEPT, REMOVED, INSERTED, KEPT, KEPT);
+  }
+
+  @Test public void reorderKeepsLongestCommonSubsequence() {
+    HistoryDiff diff = HistoryDiff.between(history(ABLE, BAKER, CHARLIE, DELTA),
+        history(BAKER, DELTA, ABLE, CHARLIE));
+    assertThat(diff.getRemoved()).hasSize(2);
+    assertThat(diff.getInserted()).hasSize(2);
+    int kept = 0;
+    for (HistoryDiff.Edit edit : diff.getEdits()) {
+      if (edit.change == KEPT) kept++;
+    }
+    assertThat(kept).isEqualTo(2);
+  }
+
+  @Test public void keptEditsCarryOriginInstancesAndPositions() {
+    TestKey otherCharlie = new TestKey("charlie");
+    HistoryDiff diff =
+        HistoryDiff.between(history(ABLE, BAKER, CHARLIE), history(ABLE, otherCharlie));
+    HistoryDiff.Edit last = diff.getEdits().get(2);
+    assertThat(last.change).isEqualTo(KEPT);
+    assertThat(last.key).isSameAs(CHARLIE);
+    assertThat(last.originPosition).isEqualTo(2);
+    assertThat(last.destinationPosition).isEqualTo(1);
+    assertThat(diff.preservingOrigin().top()).isSameAs(CHARLIE);
+  }
+
+  private static History history(Object... keys) {
+    return History.emptyBuilder().pushAll(asList(keys)).build();
+  }
+
+  private static void assertChanges(HistoryDiff diff, HistoryDiff.Change... expected) {
+    List<HistoryDiff.Edit> edits = diff.getEdits();
+    assertThat(edits).hasSize(expected.length);
+    for (int i = 0; i < expected.length; i++) {
+      assertThat(edits.get(i).change).isEqualTo(expected[i]);
+    }
+  }
+}
@@ -164,4 +164,90 @@ public class HistoryTest {
     assertThat(history.peek(1)).isEqualTo(BAKER);
     assertThat(history.peek(2)).isEqualTo(ABLE);
   }
+
+  @Test public void buildUponLeavesOriginUntouched() {
+    History origin = History.emptyBuilder().pushAll(asList(ABLE, BAKER, CHARLIE)).build();
+    History.Builder builder = origin.buildUpon();
+    builder.pop(2);
+    builder.push(CHARLIE);
+    History derived = builder.build();
+
+    assertThat(origin.asList()).containsExactly(ABLE, BAKER, CHARLIE);
+    assertThat(derived.asList()).containsExactly(ABLE, CHARLIE);
+  }
+
+  @Test public void builderCanBeReusedAfterBuild() {
+    History.Builder builder = History.emptyBuilder().push(ABLE).push(BAKER);
+    History first = builder.build();
+    builder.pop();
+    builder.push(CHARLIE);
+    History second = builder.build();
+
+    assertThat(first.asList()).containsExactly(ABLE, BAKER);
+    assertThat(second.asList()).containsExactly(ABLE, CHARLIE);
+    assertThat(second.size()).isEqualTo(2);
+    // The index built first is not changed by the builder either.
+    assertThat(first.indexOf(BAKER)).isEqualTo(0);
+    assertThat(first.contains(CHARLIE)).isFalse();
+    assertThat(second.indexOf(CHARLIE)).isEqualTo(0);
+    assertThat(second.contains(BAKER)).isFalse();
+  }
+
+  @Test public void indexOfFindsNewestEntry() {
+    History history =
+        History.emptyBuilder().pushAll(asList(ABLE, BAKER, ABLE, CHARLIE)).build();
+    assertThat(history.indexOf(CHARLIE)).isEqualTo(0);
+    assertThat(history.indexOf(ABLE)).isEqualTo(1);
+    assertThat(history.indexOf(new TestKey("baker"))).isEqualTo(2);
+    assertThat(history.lastIndexOf(ABLE)).isEqualTo(3);
+    assertThat(history.indexOf(new TestKey("delta"))).isEqualTo(-1);
+    assertThat(history.contains(BAKER)).isTrue();
+    assertThat(history.contains(new TestKey("delta"))).isFalse();
+  }
+
+  @Test public void indexIgnoresPoppedEntries() {
+    History origin = History.emptyBuilder().pushAll(asList(ABLE, BAKER, CHARLIE)).build();
+    History popped = origin.buildUpon().pop(2).build();
+    assertThat(popped.contains(BAKER)).isFalse();
+    assertThat(popped.contains(CHARLIE)).isFalse();
+    assertThat(popped.indexOf(ABLE)).isEqualTo(0);
+
+    History replaced = origin.buildUpon().pop(2).push(CHARLIE).build();
+    assertThat(replaced.contains(BAKER)).isFalse();
+    assertThat(replaced.indexOf(CHARLIE)).isEqualTo(0);
+    assertThat(origin.indexOf(CHARLIE)).isEqualTo(0);
+    assertThat(origin.indexOf(BAKER)).isEqualTo(1);
+  }
+
+  @Test public void indexSurvivesManyGenerations() {
+    History history = History.single(ABLE);
+    for (int i = 0; i < 40; i++) {
+      history = history.buildUpon().push(new TestKey("key" + i)).build();
+      if (i % 3 == 0) history = history.buildUpon().pop(1).build();
+    }
+    int expectedIndex = 0;
+    for (Object key : history.framesFromTop()) {
+      assertThat(history.indexOf(key)).isEqualTo(expectedIndex++);
+    }
+    assertThat(history.indexOf(new TestKey("key0"))).isEqualTo(-1);
+  }
+
+  @Test public void builderPopToFindsNewestEntry() {
+    History.Builder builder = History.emptyBuilder().pushAll(asList(ABLE, BAKER, ABLE, CHARLIE));
+    builder.popTo(ABLE);
+    assertThat(builder.build().size()).isEqualTo(3);
+    builder.pop();
+    builder.popTo(ABLE);
+    assertThat(builder.build().size()).isEqualTo(1);
+  }
+
+  @Test public void builderPopToMissingStateLeavesBuilderIntact() {
+    History.Builder builder = History.emptyBuilder().pushAll(asList(ABLE, BAKER));
+    try {
+      builder.popTo(CHARLIE);
+      fail("Missing state object, should have thrown");
+    } catch (IllegalArgumentException ignored) {
+      assertThat(builder.peek()).isSameAs(BAKER);
+    }
+  }
 }
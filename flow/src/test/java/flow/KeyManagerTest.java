@@ -0,0 +1,978 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow;
+
+import android.content.ComponentCallbacks2;
+import android.support.annotation.NonNull;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class KeyManagerTest {
+  private static final TestKey ABLE = new TestKey("able");
+  private static final TestKey BAKER = new TestKey("baker");
+  private static final TestKey CHARLIE = new TestKey("charlie");
+
+  private final KeyManager keyManager =
+      new KeyManager(Collections.<ServicesFactory>emptyList());
+
+  @Test public void clearedStatesAreGivenBack() {
+    keyManager.setStateRetention(8, Integer.MAX_VALUE);
+    State able = keyManager.getState(ABLE);
+    State baker = keyManager.getState(BAKER);
+
+    keyManager.clearStatesExcept(asList((Object) ABLE));
+    assertThat(keyManager.hasState(BAKER)).isFalse();
+
+    assertThat(keyManager.getState(ABLE)).isSameAs(able);
+    assertThat(keyManager.getState(BAKER)).isSameAs(baker);
+  }
+
+  @Test public void retentionEvictsLeastRecentlyCleared() {
+    keyManager.setStateRetention(1, Integer.MAX_VALUE);
+    State able = keyManager.getState(ABLE);
+    State baker = keyManager.getState(BAKER);
+
+    keyManager.clearStatesExcept(asList((Object) BAKER));
+    keyManager.clearStatesExcept(Collections.emptyList());
+
+    assertThat(keyManager.getState(BAKER)).isSameAs(baker);
+    assertThat(keyManager.getState(ABLE)).isNotSameAs(able);
+  }
+
+  @Test public void retentionIsBoundedByBytes() {
+    State able = keyManager.getState(ABLE);
+    keyManager.setStateRetention(Integer.MAX_VALUE, able.estimateBytes());
+    State baker = keyManager.getState(BAKER);
+    keyManager.getState(CHARLIE);
+
+    keyManager.clearStatesExcept(asList((Object) CHARLIE));
+
+    assertThat(keyManager.getState(BAKER)).isSameAs(baker);
+    assertThat(keyManager.getState(ABLE)).isNotSameAs(able);
+  }
+
+  @Test public void statesAreNotRetainedByDefault() {
+    State able = keyManager.getState(ABLE);
+
+    keyManager.clearStatesExcept(Collections.emptyList());
+
+    assertThat(keyManager.getState(ABLE)).isNotSameAs(able);
+  }
+
+  static class RecordingFactory extends ServicesFactory {
+    final List<Object> bound = new ArrayList<>();
+    final List<Object> tornDown = new ArrayList<>();
+
+    RecordingFactory(Class<?>... keyTypes) {
+      super(keyTypes);
+    }
+
+    @Override public void bindServices(@NonNull Services.Binder services) {
+      bound.add(services.getKey());
+    }
+
+    @Override public void tearDownServices(@NonNull Services services) {
+      tornDown.add(services.getKey());
+    }
+  }
+
+  @Test public void warmServicesAreGivenBack() {
+    RecordingFactory factory = new RecordingFactory();
+    KeyManager keyManager = new KeyManager(asList((ServicesFactory) factory));
+    keyManager.setWarmServices(2, Long.MAX_VALUE / 1000000);
+
+    keyManager.setUp(ABLE);
+    Services services = keyManager.findServices(ABLE);
+    keyManager.tearDown(ABLE);
+    assertThat(factory.tornDown).isEmpty();
+
+    keyManager.setUp(ABLE);
+    assertThat(keyManager.findServices(ABLE)).isSameAs(services);
+    assertThat(factory.bound).containsExactly(ABLE);
+  }
+
+  @Test public void warmServicesAreTornDownEldestFirst() {
+    RecordingFactory factory = new RecordingFactory();
+    KeyManager keyManager = new KeyManager(asList((ServicesFactory) factory));
+    keyManager.setWarmServices(1, Long.MAX_VALUE / 1000000);
+
+    keyManager.setUp(ABLE);
+    keyManager.setUp(BAKER);
+    keyManager.tearDown(ABLE);
+    keyManager.tearDown(BAKER);
+    assertThat(factory.tornDown).containsExactly(ABLE);
+
+    keyManager.tearDownWarmServices();
+    assertThat(factory.tornDown).containsExactly(ABLE, BAKER);
+  }
+
+  @Test public void expiredWarmServicesAreRebound() {
+    RecordingFactory factory = new RecordingFactory();
+    KeyManager keyManager = new KeyManager(asList((ServicesFactory) factory));
+    keyManager.setWarmServices(2, 0);
+
+    keyManager.setUp(ABLE);
+    keyManager.tearDown(ABLE);
+    keyManager.setUp(ABLE);
+
+    assertThat(factory.tornDown).containsExactly(ABLE);
+    assertThat(factory.bound).containsExactly(ABLE, ABLE);
+  }
+
+  static class OtherKey {
+  }
+
+  @Test public void factoriesOnlySeeTheirKeyTypes() {
+    RecordingFactory testKeys = new RecordingFactory(TestKey.class);
+    RecordingFactory otherKeys = new RecordingFactory(OtherKey.class);
+    RecordingFactory allKeys = new RecordingFactory();
+    KeyManager keyManager =
+        new KeyManager(asList((ServicesFactory) testKeys, otherKeys, allKeys));
+    OtherKey other = new OtherKey();
+
+    keyManager.setUp(ABLE);
+    keyManager.setUp(other);
+    keyManager.tearDown(ABLE);
+
+    assertThat(testKeys.bound).containsExactly(ABLE);
+    assertThat(testKeys.tornDown).containsExactly(ABLE);
+    assertThat(otherKeys.bound).containsExactly(other);
+    assertThat(otherKeys.tornDown).isEmpty();
+    assertThat(allKeys.bound).containsExactly(ABLE, other);
+  }
+
+  @Test public void factoriesTearDownInReverse() {
+    final List<String> calls = new ArrayList<>();
+    class Named extends ServicesFactory {
+      final String name;
+
+      Named(String name) {
+        super(TestKey.class);
+        this.name = name;
+      }
+
+      @Override public void bindServices(@NonNull Services.Binder services) {
+        calls.add("bind " + name);
+      }
+
+      @Override public void tearDownServices(@NonNull Services services) {
+        calls.add("tearDown " + name);
+      }
+    }
+    KeyManager keyManager =
+        new KeyManager(asList((ServicesFactory) new Named("a"), new Named("b")));
+
+    keyManager.setUp(ABLE);
+    keyManager.tearDown(ABLE);
+
+    assertThat(calls).containsExactly("bind a", "bind b", "tearDown b", "tearDown a");
+  }
+
+  static class CountingProvider extends Services.Provider<String> {
+    int created;
+    final List<String> tornDown = new ArrayList<>();
+
+    @NonNull @Override protected String create(@NonNull Services services) {
+      created++;
+      return "service for " + ((TestKey) services.getKey()).name;
+    }
+
+    @Override protected void tearDown(@NonNull String service) {
+      tornDown.add(service);
+    }
+  }
+
+  @Test public void lazyServicesAreCreatedOnFirstLookup() {
+    final CountingProvider provider = new CountingProvider();
+    KeyManager keyManager = new KeyManager(asList((ServicesFactory) new ServicesFactory() {
+      @Override public void bindServices(@NonNull Services.Binder services) {
+        services.bindLazy("lazy", provider);
+      }
+    }));
+
+    keyManager.setUp(ABLE);
+    assertThat(provider.created).isEqualTo(0);
+
+    Services services = keyManager.findServices(ABLE);
+    assertThat(services.<String>getService("lazy")).isEqualTo("service for able");
+    assertThat(services.<String>getService("lazy")).isEqualTo("service for able");
+    assertThat(provider.created).isEqualTo(1);
+
+    keyManager.tearDown(ABLE);
+    assertThat(provider.tornDown).containsExactly("service for able");
+  }
+
+  @Test public void lazyServicesThatWereNeverCreatedAreNotTornDown() {
+    final CountingProvider provider = new CountingProvider();
+    KeyManager keyManager = new KeyManager(asList((ServicesFactory) new ServicesFactory() {
+      @Override public void bindServices(@NonNull Services.Binder services) {
+        services.bindLazy("lazy", provider);
+      }
+    }));
+
+    keyManager.setUp(ABLE);
+    keyManager.tearDown(ABLE);
+
+    assertThat(provider.created).isEqualTo(0);
+    assertThat(provider.tornDown).isEmpty();
+  }
+
+  static class Child extends TestKey implements TreeKey {
+    final Object parent;
+
+    Child(String name, Object parent) {
+      super(name);
+      this.parent = parent;
+    }
+
+    @NonNull @Override public Object getParentKey() {
+      return parent;
+    }
+  }
+
+  @Test public void nestedScopesFindServicesByKeyOrName() {
+    final ServiceKey<String> color = ServiceKey.of("color");
+    final ServiceKey<String> shape = ServiceKey.of("shape");
+    KeyManager keyManager = new KeyManager(asList((ServicesFactory) new ServicesFactory() {
+      @Override public void bindServices(@NonNull Services.Binder services) {
+        final String name = ((TestKey) services.getKey()).name;
+        services.bind(color, name + " color");
+        if (name.equals("able")) services.bind("shape", "round");
+      }
+    }));
+    Child baker = new Child("baker", ABLE);
+    Child charlie = new Child("charlie", baker);
+
+    keyManager.setUp(charlie);
+    Services services = keyManager.findServices(charlie);
+
+    assertThat(services.getService(color)).isEqualTo("charlie color");
+    assertThat(services.getService(shape)).isEqualTo("round");
+    assertThat(services.<String>getService("shape")).isEqualTo("round");
+    assertThat(services.<String>getService("no such service")).isNull();
+    assertThat(keyManager.findServices(ABLE).getService(color)).isEqualTo("able color");
+  }
+
+  @Test public void servicesBoundForAChildHideTheParentsByKeyOrName() {
+    final List<String> seen = new ArrayList<>();
+    KeyManager keyManager = new KeyManager(asList((ServicesFactory) new ServicesFactory() {
+      @Override public void bindServices(@NonNull Services.Binder services) {
+        final String name = ((TestKey) services.getKey()).name;
+        services.bind("first", name + " first");
+        // Found by name while binding, before the services are built.
+        seen.add(services.<String>getService("first"));
+        if (name.equals("able")) services.bind("second", "able second");
+      }
+    }));
+    Child baker = new Child("baker", ABLE);
+
+    keyManager.setUp(baker);
+    Services services = keyManager.findServices(baker);
+
+    assertThat(seen).containsExactly("able first", "baker first");
+    assertThat(services.<String>getService("first")).isEqualTo("baker first");
+    assertThat(services.getService(ServiceKey.<String>of("first"))).isEqualTo("baker first");
+    assertThat(services.<String>getService("second")).isEqualTo("able second");
+    assertThat(services.getService(ServiceKey.of("interned after binding"))).isNull();
+    assertThat(keyManager.findServices(ABLE).<String>getService("first")).isEqualTo("able first");
+  }
+
+  @Test public void everyServiceOfManyIsFoundByKeyAndName() {
+    KeyManager keyManager = new KeyManager(asList((ServicesFactory) new ServicesFactory() {
+      @Override public void bindServices(@NonNull Services.Binder services) {
+        final String name = ((TestKey) services.getKey()).name;
+        for (int i = 0; i < 100; i++) {
+          if (name.equals("able") || i % 3 == 0) services.bind("service " + i, name + " " + i);
+        }
+      }
+    }));
+    Child baker = new Child("baker", ABLE);
+
+    keyManager.setUp(baker);
+    Services services = keyManager.findServices(baker);
+
+    for (int i = 0; i < 100; i++) {
+      final String expected = (i % 3 == 0 ? "baker " : "able ") + i;
+      assertThat(services.<String>getService("service " + i)).isEqualTo(expected);
+      assertThat(services.getService(ServiceKey.of("service " + i))).isEqualTo(expected);
+    }
+    assertThat(services.<String>getService("service 100")).isNull();
+  }
+
+  @Test public void lazyServicesAreCreatedInTheirOwnScope() {
+    final CountingProvider provider = new CountingProvider();
+    KeyManager keyManager = new KeyManager(asList((ServicesFactory) new ServicesFactory() {
+      @Override public void bindServices(@NonNull Services.Binder services) {
+        if (services.getKey() == ABLE) services.bindLazy("lazy", provider);
+      }
+    }));
+    Child baker = new Child("baker", ABLE);
+
+    keyManager.setUp(baker);
+
+    assertThat(keyManager.findServices(baker).<String>getService("lazy"))
+        .isEqualTo("service for able");
+  }
+
+  static class Declared extends ServicesFactory {
+    final String produces;
+    final List<String> consumes;
+    final List<String> calls;
+
+    Declared(List<String> calls, String produces, String... consumes) {
+      this.calls = calls;
+      this.produces = produces;
+      this.consumes = asList(consumes);
+    }
+
+    @Override public Collection<String> getProducedServices() {
+      return Collections.singletonList(produces);
+    }
+
+    @Override public Collection<String> getConsumedServices() {
+      return consumes;
+    }
+
+    @Override public void bindServices(@NonNull Services.Binder services) {
+      final StringBuilder service = new StringBuilder(produces);
+      for (String name : consumes) {
+        service.append(" ").append(services.<String>getService(name));
+      }
+      services.bind(produces, service.toString());
+    }
+
+    @Override public void tearDownServices(@NonNull Services services) {
+      calls.add("tearDown " + produces);
+    }
+  }
+
+  @Test public void factoriesAreGroupedByDependencies() {
+    List<String> calls = new ArrayList<>();
+    ServicesFactory analytics = new Declared(calls, "analytics");
+    ServicesFactory images = new Declared(calls, "images");
+    ServicesFactory repository = new Declared(calls, "repository", "analytics");
+    RecordingFactory undeclared = new RecordingFactory();
+    ServicesFactory cache = new Declared(calls, "cache");
+
+    List<ServicesFactory[]> waves = new ServicesFactoryTable(
+        asList(analytics, images, repository, undeclared, cache)).wavesForKey(ABLE);
+
+    assertThat(waves).hasSize(4);
+    assertThat(waves.get(0)).containsExactly(analytics, images);
+    assertThat(waves.get(1)).containsExactly(repository);
+    assertThat(waves.get(2)).containsExactly(undeclared);
+    assertThat(waves.get(3)).containsExactly(cache);
+  }
+
+  @Test public void independentFactoriesBindConcurrently() {
+    final CountDownLatch bothStarted = new CountDownLatch(2);
+    final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+    class Waiting extends Declared {
+      Waiting(List<String> calls, String produces) {
+        super(calls, produces);
+      }
+
+      @Override public void bindServices(@NonNull Services.Binder services) {
+        bothStarted.countDown();
+        try {
+          assertThat(bothStarted.await(5, TimeUnit.SECONDS)).isTrue();
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+        super.bindServices(services);
+      }
+    }
+    ExecutorService executor = Executors.newCachedThreadPool();
+    KeyManager keyManager = new KeyManager(asList((ServicesFactory) new Waiting(calls, "analytics"),
+        new Waiting(calls, "images"), new Declared(calls, "repository", "analytics", "images")));
+    keyManager.setBindExecutor(executor);
+
+    try {
+      keyManager.setUp(ABLE);
+    } finally {
+      executor.shutdown();
+    }
+
+    Services services = keyManager.findServices(ABLE);
+    assertThat(services.<String>getService("repository")).isEqualTo(
+        "repository analytics images");
+    keyManager.tearDown(ABLE);
+    assertThat(calls).containsExactly("tearDown repository", "tearDown images",
+        "tearDown analytics");
+  }
+
+  @Test public void bindingDoesNotHoldTheLock() throws InterruptedException {
+    final CountDownLatch binding = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final KeyManager keyManager = new KeyManager(asList((ServicesFactory) new ServicesFactory() {
+      @Override public void bindServices(@NonNull Services.Binder services) {
+        binding.countDown();
+        try {
+          assertThat(release.await(5, TimeUnit.SECONDS)).isTrue();
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+      }
+    }));
+    final Thread thread = new Thread(new Runnable() {
+      @Override public void run() {
+        keyManager.setUp(ABLE);
+      }
+    });
+    thread.start();
+    assertThat(binding.await(5, TimeUnit.SECONDS)).isTrue();
+
+    assertThat(keyManager.getState(ABLE).<TestKey>getKey()).isSameAs(ABLE);
+    keyManager.trimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW, null);
+    assertThat(release.getCount()).isEqualTo(1);
+
+    release.countDown();
+    thread.join();
+    assertThat(keyManager.findServices(ABLE).<TestKey>getKey()).isSameAs(ABLE);
+  }
+
+  @Test public void failedBindingTearsDownTheParentsItSetUp() {
+    RecordingFactory factory = new RecordingFactory() {
+      @Override public void bindServices(@NonNull Services.Binder services) {
+        if (services.getKey() instanceof Child) throw new IllegalStateException("no child");
+        super.bindServices(services);
+      }
+    };
+    KeyManager keyManager = new KeyManager(asList((ServicesFactory) factory));
+    Child baker = new Child("baker", ABLE);
+
+    try {
+      keyManager.setUp(baker);
+      fail("Binding failure should have been thrown");
+    } catch (IllegalStateException expected) {
+      assertThat(expected).hasMessage("no child");
+    }
+    assertThat(factory.bound).containsExactly(ABLE);
+    assertThat(factory.tornDown).containsExactly(ABLE);
+  }
+
+  @Test public void otherKeysCanBeSetUpWhileWaitingForConcurrentBinding()
+      throws InterruptedException {
+    final CountDownLatch bothStarted = new CountDownLatch(2);
+    final CountDownLatch release = new CountDownLatch(1);
+    final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+    final List<Thread> settingUpAble = new ArrayList<>();
+    class Blocking extends Declared {
+      Blocking(List<String> calls, String produces) {
+        super(calls, produces);
+      }
+
+      @Override public void bindServices(@NonNull Services.Binder services) {
+        try {
+          if (services.getKey() == ABLE) {
+            bothStarted.countDown();
+            assertThat(bothStarted.await(5, TimeUnit.SECONDS)).isTrue();
+            // Keeps the executor's share going, while the setting up thread waits for it.
+            if (!settingUpAble.contains(Thread.currentThread())) {
+              assertThat(release.await(5, TimeUnit.SECONDS)).isTrue();
+            }
+          }
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+        super.bindServices(services);
+      }
+    }
+    ExecutorService executor = Executors.newCachedThreadPool();
+    final KeyManager keyManager = new KeyManager(asList((ServicesFactory) //
+        new Blocking(calls, "analytics"), new Blocking(calls, "images")));
+    keyManager.setBindExecutor(executor);
+
+    final Thread thread = new Thread(new Runnable() {
+      @Override public void run() {
+        keyManager.setUp(ABLE);
+      }
+    });
+    settingUpAble.add(thread);
+    try {
+      thread.start();
+      assertThat(bothStarted.await(5, TimeUnit.SECONDS)).isTrue();
+
+      keyManager.setUp(BAKER);
+      assertThat(keyManager.findServices(BAKER).<String>getService("images")).isEqualTo("images");
+      assertThat(release.getCount()).isEqualTo(1);
+
+      release.countDown();
+      thread.join();
+    } finally {
+      executor.shutdown();
+    }
+    assertThat(keyManager.findServices(ABLE).<String>getService("images")).isEqualTo("images");
+  }
+
+  @Test public void failedConcurrentBindingTearsDownWhatWasBound() {
+    final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+    ExecutorService executor = Executors.newCachedThreadPool();
+    KeyManager keyManager = new KeyManager(asList((ServicesFactory) //
+        new Declared(calls, "analytics"), new Declared(calls, "images") {
+          @Override public void bindServices(@NonNull Services.Binder services) {
+            throw new IllegalStateException("no images");
+          }
+        }));
+    keyManager.setBindExecutor(executor);
+
+    try {
+      keyManager.setUp(ABLE);
+      fail("Binding failure should have been thrown");
+    } catch (IllegalStateException expected) {
+      assertThat(expected).hasMessage("no images");
+    } finally {
+      executor.shutdown();
+    }
+    assertThat(calls).containsExactly("tearDown analytics");
+    try {
+      keyManager.findServices(ABLE);
+      fail("Nothing should be set up for the key");
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+  @Test public void errorsWhileBindingConcurrentlyAreRethrown() {
+    final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+    KeyManager keyManager = new KeyManager(asList((ServicesFactory) //
+        new Declared(calls, "analytics"), new Declared(calls, "images") {
+          @Override public void bindServices(@NonNull Services.Binder services) {
+            throw new LinkageError("no images");
+          }
+        }));
+    // Drains the whole wave on another thread, so the error is thrown there.
+    keyManager.setBindExecutor(new Executor() {
+      @Override public void execute(@NonNull Runnable command) {
+        Thread thread = new Thread(command);
+        thread.start();
+        try {
+          thread.join();
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+      }
+    });
+
+    try {
+      keyManager.setUp(ABLE);
+      fail("Binding error should have been thrown");
+    } catch (LinkageError expected) {
+      assertThat(expected).hasMessage("no images");
+    }
+    assertThat(calls).containsExactly("tearDown analytics");
+  }
+
+  @Test public void relativeSetUpOnlyTouchesWhatChanges() {
+    RecordingFactory factory = new RecordingFactory();
+    KeyManager keyManager = new KeyManager(asList((ServicesFactory) factory));
+    Child baker = new Child("baker", ABLE);
+    Child charlie = new Child("charlie", baker);
+    Child delta = new Child("delta", baker);
+
+    keyManager.setUp(charlie);
+    factory.bound.clear();
+    keyManager.setUp(delta, charlie);
+    keyManager.tearDown(charlie, delta);
+
+    assertThat(factory.bound).containsExactly(delta);
+    assertThat(factory.tornDown).containsExactly(charlie);
+
+    keyManager.tearDown(delta);
+    assertThat(factory.tornDown).containsExactly(charlie, delta, baker, ABLE);
+  }
+
+  @Test public void relativeSetUpBetweenMultiKeysKeepsSharedParts() {
+    RecordingFactory factory = new RecordingFactory();
+    KeyManager keyManager = new KeyManager(asList((ServicesFactory) factory));
+    TestMultiKey first = new TestMultiKey("first", ABLE, BAKER);
+    TestMultiKey second = new TestMultiKey("second", BAKER, CHARLIE);
+
+    keyManager.setUp(first);
+    factory.bound.clear();
+    keyManager.setUp(second, first);
+    keyManager.tearDown(first, second);
+
+    assertThat(factory.bound).containsExactly(CHARLIE, second);
+    assertThat(factory.tornDown).containsExactly(first, ABLE);
+  }
+
+  @Test public void relativeSetUpOfPlainKeys() {
+    RecordingFactory factory = new RecordingFactory();
+    KeyManager keyManager = new KeyManager(asList((ServicesFactory) factory));
+
+    keyManager.setUp(ABLE);
+    keyManager.setUp(BAKER, ABLE);
+    keyManager.tearDown(ABLE, BAKER);
+    keyManager.setUp(new TestKey("baker"), BAKER);
+    keyManager.tearDown(BAKER, BAKER);
+
+    assertThat(factory.bound).containsExactly(ABLE, BAKER);
+    assertThat(factory.tornDown).containsExactly(ABLE);
+    assertThat(keyManager.findServices(BAKER).getKey()).isSameAs(BAKER);
+  }
+
+  @Test public void deepTreesDoNotRecurse() {
+    KeyManager keyManager = new KeyManager(Collections.<ServicesFactory>emptyList());
+    Object key = ABLE;
+    for (int i = 0; i < 100000; i++) {
+      key = new Child("child" + i, key);
+    }
+
+    keyManager.setUp(key);
+    keyManager.tearDown(key);
+  }
+
+  static class TestMultiKey extends TestKey implements MultiKey {
+    final List<Object> parts;
+
+    TestMultiKey(String name, Object... parts) {
+      super(name);
+      this.parts = asList(parts);
+    }
+
+    @NonNull @Override public List<Object> getKeys() {
+      return parts;
+    }
+  }
+
+  @Test public void scopeIsCancelledBeforeServicesAreTornDown() {
+    final List<Boolean> cancelledAtTearDown = new ArrayList<>();
+    KeyManager keyManager = new KeyManager(asList((ServicesFactory) new ServicesFactory() {
+      @Override public void bindServices(@NonNull Services.Binder services) {
+        assertThat(services.getScope().isCancelled()).isFalse();
+      }
+
+      @Override public void tearDownServices(@NonNull Services services) {
+        cancelledAtTearDown.add(services.getScope().isCancelled());
+      }
+    }));
+    keyManager.setUp(ABLE);
+    final List<String> calls = new ArrayList<>();
+    keyManager.findServices(ABLE).getScope().addOnCancelListener(new Scope.OnCancelListener() {
+      @Override public void onCancel() {
+        calls.add("cancelled");
+      }
+    });
+
+    keyManager.tearDown(ABLE);
+
+    assertThat(calls).containsExactly("cancelled");
+    assertThat(cancelledAtTearDown).containsExactly(true);
+  }
+
+  @Test public void childScopesAreCancelledWithTheirParent() {
+    KeyManager keyManager = new KeyManager(Collections.<ServicesFactory>emptyList());
+    Child baker = new Child("baker", ABLE);
+    keyManager.setUp(baker);
+    keyManager.setUp(CHARLIE);
+    Scope child = keyManager.findServices(baker).getScope();
+
+    keyManager.findServices(ABLE).getScope().cancel();
+
+    assertThat(child.isCancelled()).isTrue();
+    assertThat(keyManager.findServices(CHARLIE).getScope().isCancelled()).isFalse();
+  }
+
+  @Test public void scopeExecutorDropsWorkOnceCancelled() {
+    final List<Runnable> queued = new ArrayList<>();
+    KeyManager keyManager = new KeyManager(Collections.<ServicesFactory>emptyList());
+    keyManager.setScopeExecutor(new Executor() {
+      @Override public void execute(@NonNull Runnable command) {
+        queued.add(command);
+      }
+    });
+    keyManager.setUp(ABLE);
+    final List<String> ran = new ArrayList<>();
+    Executor executor = keyManager.findServices(ABLE).getScope().getExecutor();
+    executor.execute(new Runnable() {
+      @Override public void run() {
+        ran.add("work");
+      }
+    });
+
+    keyManager.tearDown(ABLE);
+    executor.execute(new Runnable() {
+      @Override public void run() {
+        ran.add("late work");
+      }
+    });
+    for (Runnable command : queued) {
+      command.run();
+    }
+
+    assertThat(queued).hasSize(1);
+    assertThat(ran).isEmpty();
+  }
+
+  @Test public void scopeExecutorRethrowsFailuresOnTheBackgroundThread() {
+    KeyManager keyManager = new KeyManager(Collections.<ServicesFactory>emptyList());
+    keyManager.setScopeExecutor(new Executor() {
+      @Override public void execute(@NonNull Runnable command) {
+        command.run();
+      }
+    });
+    keyManager.setUp(ABLE);
+    Executor executor = keyManager.findServices(ABLE).getScope().getExecutor();
+
+    try {
+      executor.execute(new Runnable() {
+        @Override public void run() {
+          throw new IllegalStateException("failed work");
+        }
+      });
+      fail("Failure should have reached the background thread");
+    } catch (IllegalStateException expected) {
+      assertThat(expected).hasMessage("failed work");
+    }
+  }
+
+  static class AsyncFactory extends ServicesFactory {
+    final String name;
+    final boolean async;
+    final List<String> calls;
+
+    AsyncFactory(String name, boolean async, List<String> calls) {
+      super(TestKey.class);
+      this.name = name;
+      this.async = async;
+      this.calls = calls;
+    }
+
+    @Override public void bindServices(@NonNull Services.Binder services) {
+      calls.add("bind " + name);
+    }
+
+    @Override public void tearDownServices(@NonNull Services services) {
+      calls.add("tearDown " + name);
+    }
+
+    @Override public boolean isTearDownAsync() {
+      return async;
+    }
+  }
+
+  static class QueueExecutor implements Executor {
+    final List<Runnable> queued = new ArrayList<>();
+
+    @Override public void execute(@NonNull Runnable command) {
+      queued.add(command);
+    }
+
+    void runOnOtherThread(int index) throws InterruptedException {
+      final Thread thread = new Thread(queued.get(index));
+      thread.start();
+      thread.join();
+    }
+  }
+
+  @Test public void onlyAsyncTearDownsRunOnTheExecutor() throws InterruptedException {
+    final List<String> calls = new ArrayList<>();
+    final QueueExecutor background = new QueueExecutor();
+    final QueueExecutor main = new QueueExecutor();
+    KeyManager keyManager = new KeyManager(asList((ServicesFactory) //
+        new AsyncFactory("a", false, calls), new AsyncFactory("b", true, calls),
+        new AsyncFactory("c", false, calls)));
+    keyManager.setTearDownExecutor(background, main);
+
+    keyManager.setUp(ABLE);
+    keyManager.tearDown(ABLE);
+    assertThat(calls).containsExactly("bind a", "bind b", "bind c", "tearDown c");
+    assertThat(background.queued).hasSize(1);
+
+    background.runOnOtherThread(0);
+    assertThat(calls).endsWith("tearDown c", "tearDown b");
+    assertThat(main.queued).hasSize(1);
+
+    main.queued.get(0).run();
+    assertThat(calls).endsWith("tearDown c", "tearDown b", "tearDown a");
+    assertThat(background.queued).hasSize(1);
+  }
+
+  @Test public void asyncTearDownOfChildrenPrecedesTheirParents() throws InterruptedException {
+    final List<String> calls = new ArrayList<>();
+    final QueueExecutor background = new QueueExecutor();
+    final QueueExecutor main = new QueueExecutor();
+    KeyManager keyManager = new KeyManager(asList((ServicesFactory) //
+        new AsyncFactory("a", true, calls) {
+          @Override public void tearDownServices(@NonNull Services services) {
+            calls.add("tearDown " + ((TestKey) services.getKey()).name);
+          }
+        }));
+    keyManager.setTearDownExecutor(background, main);
+    Child baker = new Child("baker", ABLE);
+
+    keyManager.setUp(baker);
+    keyManager.tearDown(baker);
+    assertThat(calls).containsExactly("bind a", "bind a");
+    assertThat(background.queued).hasSize(1);
+
+    background.runOnOtherThread(0);
+    assertThat(calls).endsWith("tearDown baker");
+    assertThat(background.queued).hasSize(1);
+
+    // The child's lazy services are torn down on the main thread before the parent's turn.
+    main.queued.get(0).run();
+    assertThat(background.queued).hasSize(2);
+    background.runOnOtherThread(1);
+    assertThat(calls).endsWith("tearDown baker", "tearDown able");
+  }
+
+  @Test public void settingUpAgainWaitsForPendingTearDown() {
+    final List<String> calls = new ArrayList<>();
+    final QueueExecutor background = new QueueExecutor();
+    KeyManager keyManager =
+        new KeyManager(asList((ServicesFactory) new AsyncFactory("a", true, calls)));
+    keyManager.setTearDownExecutor(background, new QueueExecutor());
+
+    keyManager.setUp(ABLE);
+    keyManager.tearDown(ABLE);
+    keyManager.setUp(ABLE);
+    assertThat(calls).containsExactly("bind a", "tearDown a", "bind a");
+
+    // The executor getting to it late does not tear it down twice.
+    background.queued.get(0).run();
+    assertThat(calls).containsExactly("bind a", "tearDown a", "bind a");
+  }
+
+  @Test public void waitingForTearDownDoesNotBlockOtherKeys() throws InterruptedException {
+    final CountDownLatch tearingDown = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+    final QueueExecutor background = new QueueExecutor();
+    final ExecutorService main = Executors.newSingleThreadExecutor();
+    final KeyManager keyManager = new KeyManager(asList((ServicesFactory) //
+        new AsyncFactory("a", true, calls) {
+          @Override public void tearDownServices(@NonNull Services services) {
+            tearingDown.countDown();
+            try {
+              release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+              throw new AssertionError(e);
+            }
+            super.tearDownServices(services);
+          }
+        }));
+    keyManager.setTearDownExecutor(background, main);
+    keyManager.setUp(ABLE);
+    keyManager.tearDown(ABLE);
+
+    final Thread executor = new Thread(background.queued.get(0));
+    executor.start();
+    assertThat(tearingDown.await(5, TimeUnit.SECONDS)).isTrue();
+    final Thread settingUp = new Thread(new Runnable() {
+      @Override public void run() {
+        keyManager.setUp(ABLE);
+      }
+    });
+    settingUp.start();
+
+    keyManager.setUp(BAKER);
+    assertThat(calls).containsExactly("bind a", "bind a");
+
+    release.countDown();
+    executor.join();
+    settingUp.join();
+    main.shutdown();
+    assertThat(calls).containsExactly("bind a", "bind a", "tearDown a", "bind a");
+  }
+
+  @Test public void tearDownIsSynchronousWithoutAnExecutor() {
+    final List<String> calls = new ArrayList<>();
+    KeyManager keyManager =
+        new KeyManager(asList((ServicesFactory) new AsyncFactory("a", true, calls)));
+
+    keyManager.setUp(ABLE);
+    keyManager.tearDown(ABLE);
+
+    assertThat(calls).containsExactly("bind a", "tearDown a");
+  }
+
+  static class CacheFactory extends ServicesFactory {
+    final List<String> trimmed = new ArrayList<>();
+
+    @Override public void bindServices(@NonNull Services.Binder services) {
+      final String name = ((TestKey) services.getKey()).name;
+      services.addSizer(new Services.Sizer() {
+        long bytes = 100;
+
+        @Override public long estimateBytes() {
+          return bytes;
+        }
+
+        @Override public void onTrimMemory(int level) {
+          trimmed.add(name);
+          bytes = 0;
+        }
+      });
+    }
+  }
+
+  @Test public void trimMemoryKeepsTheVisibleKeyAndItsParents() {
+    CacheFactory factory = new CacheFactory();
+    KeyManager keyManager = new KeyManager(asList((ServicesFactory) factory));
+    Child charlie = new Child("charlie", ABLE);
+
+    keyManager.setUp(BAKER);
+    keyManager.setUp(charlie);
+    keyManager.trimMemory(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND, charlie);
+
+    assertThat(factory.trimmed).containsExactly("baker");
+    assertThat(keyManager.findServices(ABLE).getScope().estimateBytes()).isEqualTo(100);
+  }
+
+  @Test public void warmServicesSurviveBackgroundingButNotMemoryPressure() {
+    RecordingFactory factory = new RecordingFactory();
+    KeyManager keyManager = new KeyManager(asList((ServicesFactory) factory));
+    keyManager.setWarmServices(2, Long.MAX_VALUE / 1000000);
+    keyManager.setUp(ABLE);
+    keyManager.tearDown(ABLE);
+
+    keyManager.trimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN, BAKER);
+    assertThat(factory.tornDown).isEmpty();
+
+    keyManager.trimMemory(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND, BAKER);
+    assertThat(factory.tornDown).containsExactly(ABLE);
+  }
+
+  @Test public void budgetTrimsLeastRecentlySetUpFirst() {
+    CacheFactory factory = new CacheFactory();
+    KeyManager keyManager = new KeyManager(asList((ServicesFactory) factory));
+    keyManager.setMemoryBudget(250);
+
+    keyManager.setUp(ABLE);
+    keyManager.setUp(BAKER);
+    keyManager.setUp(CHARLIE);
+    keyManager.trimToMemoryBudget(CHARLIE);
+    assertThat(factory.trimmed).containsExactly("able");
+
+    keyManager.setMemoryBudget(50);
+    keyManager.trimToMemoryBudget(CHARLIE);
+    assertThat(factory.trimmed).containsExactly("able", "baker");
+  }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2016 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package flow;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.SparseArray;
+import android.view.View;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Fail.fail;
+
+@RunWith(RobolectricTestRunner.class) // Necessary for functional Bundle
+@Config(manifest = Config.NONE) //
+public class StateTest {
+  private static final KeyParceler PARCELER = new KeyParceler() {
+    @NonNull @Override public Parcelable toParcelable(@NonNull Object key) {
+      return new Bundle();
+    }
+
+    @NonNull @Override public Object toKey(@NonNull Parcelable parcelable) {
+      return new TestKey("restored");
+    }
+  };
+
+  @Test public void unchangedStatesAreNotSavedAgain() {
+    State state = new State(new TestKey("able"));
+    Bundle first = state.toBundle(PARCELER);
+
+    assertThat(state.toBundle(PARCELER)).isSameAs(first);
+  }
+
+  @Test public void changedStatesAreSavedAgain() {
+    State state = new State(new TestKey("able"));
+    Bundle first = state.toBundle(PARCELER);
+
+    state.setBundle(new Bundle());
+    Bundle second = state.toBundle(PARCELER);
+    assertThat(second).isNotSameAs(first);
+
+    // The caller may write to it.
+    state.getBundle();
+    assertThat(state.toBundle(PARCELER)).isNotSameAs(second);
+  }
+
+  @Test public void restoredStatesAreSavedWithoutDecoding() {
+    Bundle savedState = new Bundle();
+    State state = State.fromBundle(savedState, PARCELER);
+
+    assertThat(state.<TestKey>getKey().name).isEqualTo("restored");
+    assertThat(state.toBundle(PARCELER)).isSameAs(savedState);
+  }
+
+  @Test public void spilledStatesThatCannotBeReadStartOutEmpty() {
+    State state = new State(new TestKey("able"));
+    Bundle bundle = new Bundle();
+    bundle.putString("text", "hello");
+    state.setBundle(bundle);
+    List<byte[]> segment = new ArrayList<>();
+    Bundle frame = state.toBundle(PARCELER, segment, 0);
+    StateStore store = new StateStore() {
+      @NonNull @Override public String write(@NonNull List<byte[]> frames) {
+        throw new UnsupportedOperationException();
+      }
+
+      @NonNull @Override public byte[] read(@NonNull String token, int index) {
+        throw new IllegalStateException("Misbehaving store");
+      }
+
+      @Override public void delete(@NonNull String token) {
+      }
+    };
+
+    State restored = State.fromBundle(frame, PARCELER, store, "segment");
+    assertThat(restored.getBundle()).isNull();
+  }
+
+  /** Holds segments in memory, by their index as a token. */
+  static class MemoryStateStore implements StateStore {
+    final List<List<byte[]>> segments = new ArrayList<>();
+
+    @NonNull @Override public String write(@NonNull List<byte[]> frames) {
+      segments.add(new ArrayList<>(frames));
+      return String.valueOf(segments.size() - 1);
+    }
+
+    @NonNull @Override public byte[] read(@NonNull String token, int index) throws IOException {
+      final List<byte[]> segment = segments.get(Integer.parseInt(token));
+      if (segment == null) throw new FileNotFoundException(token);
+      return segment.get(index);
+    }
+
+    @Override public void delete(@NonNull String token) {
+      segments.set(Integer.parseInt(token), null);
+    }
+  }
+
+  @Test public void retainedSpilledStatesOutliveTheirSegment() {
+    State state = new State(new TestKey("able"));
+    Bundle bundle = new Bundle();
+    bundle.putString("text", "hello");
+    state.setBundle(bundle);
+    List<byte[]> segment = new ArrayList<>();
+    Bundle frame = state.toBundle(PARCELER, segment, 0);
+    MemoryStateStore store = new MemoryStateStore();
+    String token = store.write(segment);
+
+    KeyManager keyManager = new KeyManager(Collections.<ServicesFactory>emptyList());
+    keyManager.setStateRetention(8, Integer.MAX_VALUE);
+    State restored = State.fromBundle(frame, PARCELER, store, token);
+    keyManager.addState(restored);
+    // Leaves the history, but is retained.
+    keyManager.clearStatesExcept(Collections.emptyList());
+
+    keyManager.loadSpilledStates();
+    store.delete(token);
+
+    assertThat(keyManager.getState(restored.getKey())).isSameAs(restored);
+    //noinspection ConstantConditions
+    assertThat(restored.getBundle().getString("text")).isEqualTo("hello");
+  }
+
+  @Test public void unreadSpilledStatesAreCarriedOverWithoutDecoding() {
+    State state = new State(new TestKey("able"));
+    Bundle bundle = new Bundle();
+    bundle.putString("text", "hello");
+    state.setBundle(bundle);
+    List<byte[]> first = new ArrayList<>();
+    MemoryStateStore store = new MemoryStateStore();
+    Bundle frame = state.toBundle(PARCELER, first, 0);
+    String token = store.write(first);
+    State restored = State.fromBundle(frame, PARCELER, store, token);
+
+    List<byte[]> second = new ArrayList<>();
+    Bundle carried = restored.toBundle(PARCELER, second, 0);
+    assertThat(second).hasSize(1);
+    assertThat(second.get(0)).isSameAs(first.get(0));
+
+    String secondToken = store.write(second);
+    store.delete(token);
+    State restoredAgain = State.fromBundle(carried, PARCELER, store, secondToken);
+    //noinspection ConstantConditions
+    assertThat(restoredAgain.getBundle().getString("text")).isEqualTo("hello");
+  }
+
+  /** Saves its text as its view state. */
+  static class TextStateView extends View {
+    @Nullable String text;
+
+    TextStateView(int id, @Nullable String text) {
+      super(RuntimeEnvironment.application);
+      setId(id);
+      this.text = text;
+    }
+
+    @Override public void saveHierarchyState(SparseArray<Parcelable> container) {
+      Bundle state = new Bundle();
+      state.putString("text", text);
+      container.put(getId(), state);
+    }
+
+    @Override public void restoreHierarchyState(SparseArray<Parcelable> container) {
+      Bundle state = (Bundle) container.get(getId());
+      text = state == null ? null : state.getString("text");
+    }
+  }
+
+  /** Can be put in a Bundle, but not written to a Parcel. */
+  static class Unflattenable implements Parcelable {
+    @Override public int describeContents() {
+      return 0;
+    }
+
+    @Override public void writeToParcel(Parcel dest, int flags) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  @Test public void packedViewStatesRoundTrip() {
+    State state = new State(new TestKey("able"));
+    state.save(new TextStateView(1, "first"));
+    state.save(new TextStateView(2, "second"));
+
+    Bundle saved = state.toBundle(PARCELER);
+    assertThat(saved.containsKey("VIEW_STATE_IDS")).isFalse();
+    State restored = State.fromBundle(saved, PARCELER);
+
+    TextStateView first = new TextStateView(1, null);
+    TextStateView second = new TextStateView(2, null);
+    restored.restore(first);
+    restored.restore(second);
+    assertThat(first.text).isEqualTo("first");
+    assertThat(second.text).isEqualTo("second");
+  }
+
+  @Test public void bundlesSavedWithOneKeyPerViewAreRead() {
+    SparseArray<Parcelable> viewState = new SparseArray<>();
+    Bundle textState = new Bundle();
+    textState.putString("text", "old");
+    viewState.put(1, textState);
+    Bundle saved = new Bundle();
+    saved.putParcelable("KEY", PARCELER.toParcelable(new TestKey("able")));
+    saved.putIntArray("VIEW_STATE_IDS", new int[] {1});
+    saved.putSparseParcelableArray("VIEW_STATE_1", viewState);
+
+    TextStateView view = new TextStateView(1, null);
+    State.fromBundle(saved, PARCELER).restore(view);
+
+    assertThat(view.text).isEqualTo("old");
+  }
+
+  @Test public void viewStatesThatCannotBePackedAreSavedPerView() {
+    final Unflattenable unflattenable = new Unflattenable();
+    State state = new State(new TestKey("able"));
+    state.save(new View(RuntimeEnvironment.application) {
+      {
+        setId(1);
+      }
+
+      @Override public void saveHierarchyState(SparseArray<Parcelable> container) {
+        container.put(1, unflattenable);
+      }
+    });
+
+    Bundle saved = state.toBundle(PARCELER);
+    assertThat(saved.getIntArray("VIEW_STATE_IDS")).containsExactly(1);
+
+    final List<Parcelable> restoredStates = new ArrayList<>();
+    State.fromBundle(saved, PARCELER).restore(new View(RuntimeEnvironment.application) {
+      {
+        setId(1);
+      }
+
+      @Override public void restoreHierarchyState(SparseArray<Parcelable> container) {
+        restoredStates.add(container.get(1));
+      }
+    });
+    assertThat(restoredStates).containsExactly(unflattenable);
+  }
+
+  @Test public void unknownLayoutsAreRejected() {
+    Bundle saved = new Bundle();
+    saved.putParcelable("KEY", PARCELER.toParcelable(new TestKey("able")));
+    saved.putInt("LAYOUT", 99);
+    State state = State.fromBundle(saved, PARCELER);
+
+    try {
+      state.restore(new TextStateView(1, null));
+      fail("Unknown layout should have been rejected");
+    } catch (IllegalStateException expected) {
+      assertThat(expected).hasMessage("Unknown saved state layout 99");
+    }
+  }
+
+  @Test public void compactedViewStatesAreRestored() {
+    State state = new State(new TestKey("able"));
+    state.save(new TextStateView(1, "compacted"));
+    assertThat(state.getCompactViewStateBytes()).isEqualTo(0);
+
+    state.compactViewState();
+    assertThat(state.getCompactViewStateBytes()).isGreaterThan(0);
+
+    TextStateView view = new TextStateView(1, null);
+    state.restore(view);
+    assertThat(view.text).isEqualTo("compacted");
+    // Expanded again, now that the key is in view.
+    assertThat(state.getCompactViewStateBytes()).isEqualTo(0);
+  }
+}